@@ -0,0 +1,661 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.*;
+
+/**
+ * A class of batches of changes to the filesystem that are made all at once.
+ *
+ * Files can be created and things can be moved, renamed and deleted. Nothing changes until the
+ * batch is committed. Committing first checks every change against the state the changes before
+ * it leave behind; if one of them is not allowed, nothing changes at all. Otherwise the content of
+ * every directory involved is changed in one pass, and all the things whose modification time
+ * changes get the same time.
+ *
+ * @invar Every thing takes part in at most one change of the batch.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class Batch {
+
+    /**
+     * Variable referencing the changes of this batch, in the order they were asked for.
+     */
+    private final List<Change> changes = new ArrayList<Change>();
+
+    /**
+     * Variable referencing the things that take part in a change of this batch.
+     */
+    private final Set<Thing> involved = Collections.newSetFromMap(new IdentityHashMap<Thing, Boolean>());
+
+    /**
+     * Variable stating whether this batch has been committed or failed.
+     */
+    private boolean isFinished = false;
+
+    /**
+     * @return whether this batch has been committed or failed to commit.
+     */
+    @Basic
+    public boolean isFinished(){
+        return isFinished;
+    }
+
+    /**
+     * @return the number of changes in this batch.
+     */
+    @Basic
+    public int getNbChanges(){
+        return changes.size();
+    }
+
+    /**
+     * Adds the creation of a new file to this batch.
+     * @param dir
+     *        the directory of the new file.
+     * @return the new file, which is placed in the given directory when this batch is committed.
+     *         | result.getName() == name if isValidName(name)
+     * @throws IllegalArgumentException
+     *         if the directory is not effective.
+     *         | dir == null
+     * @see File#File(Directory, String, int, boolean, Type)
+     */
+    public File createFile(Directory dir, String name, int size, boolean writable, Type type)
+            throws IllegalArgumentException, IllegalStateException {
+        if(dir == null)
+            throw new IllegalArgumentException();
+        File file = new File(null, name, size, writable, type);
+        addChange(new Create(file, dir));
+        return file;
+    }
+
+    /**
+     * Adds the creation of a new empty, writable file to this batch.
+     * @effect | createFile(dir, name, 0, true, type)
+     */
+    public File createFile(Directory dir, String name, Type type) throws IllegalArgumentException, IllegalStateException {
+        return createFile(dir, name, 0, true, type);
+    }
+
+    /**
+     * Adds the creation of a new file that was created at the given time to this batch.
+     * @param creationMillis
+     *        the time of creation, in milliseconds since the epoch.
+     * @effect | createFile(dir, name, size, writable, type)
+     * @post  | result.getCreationMillis() == creationMillis
+     */
+    File createFile(Directory dir, String name, int size, boolean writable, Type type, long creationMillis)
+            throws IllegalArgumentException, IllegalStateException {
+        if(dir == null)
+            throw new IllegalArgumentException();
+        File file = new File(name, size, type, creationMillis);
+        file.setWritable(writable);
+        addChange(new Create(file, dir));
+        return file;
+    }
+
+    /**
+     * Adds the move of the given thing to the given directory to this batch.
+     * @throws IllegalArgumentException
+     *         if the thing or location is not effective or the thing already takes part in this batch.
+     *         | thing == null || location == null
+     * @see Directory#move(Directory)
+     */
+    public void move(Thing thing, Directory location) throws IllegalArgumentException, IllegalStateException {
+        if(thing == null || location == null)
+            throw new IllegalArgumentException();
+        addChange(new Move(thing, location));
+    }
+
+    /**
+     * Adds the change of the name of the given thing to this batch. Invalid names are ignored,
+     * as by changeName.
+     * @throws IllegalArgumentException
+     *         if the thing is not effective or already takes part in this batch.
+     *         | thing == null
+     * @see Thing#changeName(String)
+     */
+    public void rename(Thing thing, String name) throws IllegalArgumentException, IllegalStateException {
+        if(thing == null)
+            throw new IllegalArgumentException();
+        addChange(new Rename(thing, name));
+    }
+
+    /**
+     * Adds the termination of the given thing to this batch. A directory can be deleted if it is
+     * empty after the changes before it in this batch.
+     * @throws IllegalArgumentException
+     *         if the thing is not effective or already takes part in this batch.
+     *         | thing == null
+     * @see Thing#terminate()
+     */
+    public void delete(Thing thing) throws IllegalArgumentException, IllegalStateException {
+        if(thing == null)
+            throw new IllegalArgumentException();
+        addChange(new Delete(thing));
+    }
+
+    /**
+     * Adds the given change to this batch.
+     * @throws IllegalArgumentException
+     *         if the thing of the change already takes part in this batch or is terminated.
+     * @throws IllegalStateException
+     *         if this batch is finished.
+     *         | isFinished()
+     */
+    @Model
+    private void addChange(Change change) throws IllegalArgumentException, IllegalStateException {
+        if(isFinished())
+            throw new IllegalStateException("The batch is finished");
+        if(change.thing.isTerminated || !involved.add(change.thing))
+            throw new IllegalArgumentException();
+        changes.add(change);
+    }
+
+    /**
+     * Makes all the changes of this batch, or none of them.
+     *
+     * @post  This batch is finished.
+     *        | new.isFinished()
+     * @throws FileNotWritableException
+     *         if one of the changes needs a thing that is not writable to be written.
+     * @throws NameNotAvailableException
+     *         if a thing would get the same name as another item of its directory.
+     * @throws LoopedDirectoryException
+     *         if a directory would be moved into itself or one of its submaps.
+     * @throws DirectoryNotEmptyException
+     *         if a deleted directory would not be empty.
+     * @throws IllegalArgumentException
+     *         if a root would be moved, or a thing would be moved to the directory it is in or
+     *         into a deleted directory.
+     * @throws IllegalStateException
+     *         if this batch is already finished.
+     *         | isFinished()
+     * @note  When an exception is thrown, nothing has changed and the files created by this batch
+     *        are terminated.
+     */
+    public void commit() throws FileNotWritableException, NameNotAvailableException, LoopedDirectoryException,
+            DirectoryNotEmptyException, IllegalArgumentException, IllegalStateException {
+        commit(System.currentTimeMillis());
+    }
+
+    /**
+     * Makes all the changes of this batch, or none of them, at the given time.
+     * @param millis
+     *        the time of the changes, in milliseconds since the epoch.
+     * @effect | commit()
+     * @post  The things modified by this batch have the given time as modification time.
+     */
+    void commit(long millis) throws FileNotWritableException, NameNotAvailableException, LoopedDirectoryException,
+            DirectoryNotEmptyException, IllegalArgumentException, IllegalStateException {
+        if(isFinished())
+            throw new IllegalStateException("The batch is finished");
+        isFinished = true;
+        Locking.lockStructure();
+        try {
+            try {
+                Plan plan = new Plan();
+                for(Change change : changes)
+                    change.check(plan);
+            } catch (RuntimeException e) {
+                for(Change change : changes)
+                    if(change instanceof Create)
+                        change.thing.setTerminated();
+                throw e;
+            }
+            log(millis);
+            apply(millis);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockStructure();
+        }
+    }
+
+    /**
+     * Records the checked changes of this batch, made at the given time, in the open journal,
+     * with the paths things have before any of them is made. Changes outside the tree of the journal are not recorded.
+     */
+    @Model
+    private void log(long millis){
+        Journal journal = Journal.current();
+        if(journal == null)
+            return;
+        List<Change> recorded = new ArrayList<Change>();
+        for(Change change : changes)
+            if(change.isRecordedBy(journal))
+                recorded.add(change);
+        if(recorded.isEmpty())
+            return;
+        synchronized (journal) {
+            journal.recordBatch(recorded.size(), millis);
+            for(Change change : recorded)
+                change.log(journal, millis);
+        }
+    }
+
+    /**
+     * Makes all the checked changes of this batch, at the given time.
+     */
+    @Model
+    private void apply(long now){
+        Map<Directory, Set<Thing>> removals = new IdentityHashMap<Directory, Set<Thing>>();
+        Map<Directory, List<Thing>> additions = new IdentityHashMap<Directory, List<Thing>>();
+        Set<Thing> modified = Collections.newSetFromMap(new IdentityHashMap<Thing, Boolean>());
+        // The events and indexes need the directories and names things had before the batch.
+        boolean isObserved = Subscription.isObserved() || FileIndex.isActive();
+        Directory[] oldDirectories = isObserved ? new Directory[changes.size()] : null;
+        String[] oldNames = isObserved ? new String[changes.size()] : null;
+        for(int i = 0; isObserved && i < changes.size(); i++){
+            oldDirectories[i] = changes.get(i).thing.getDirectory();
+            oldNames[i] = changes.get(i).thing.getName();
+        }
+        for(Change change : changes){
+            Directory from = change.getSource();
+            if(from != null)
+                removals.computeIfAbsent(from, dir -> Collections.newSetFromMap(new IdentityHashMap<Thing, Boolean>()))
+                        .add(change.thing);
+        }
+        // The totals of a map are changed through its directory, so the deepest maps go first
+        // while things are taken out, and last while things are put in.
+        for(Directory dir : byDepth(removals.keySet(), false))
+            dir.removeItems(removals.get(dir));
+        for(Change change : changes){
+            Directory to = change.apply(modified);
+            if(to != null)
+                additions.computeIfAbsent(to, dir -> new ArrayList<Thing>()).add(change.thing);
+        }
+        for(Directory dir : byDepth(additions.keySet(), true))
+            dir.insertItems(additions.get(dir));
+        for(Thing thing : modified)
+            thing.setModificationMillis(now);
+        for(int i = 0; isObserved && i < changes.size(); i++)
+            changes.get(i).publish(oldDirectories[i], oldNames[i]);
+    }
+
+    /**
+     * @return the given directories ordered by their depth, the highest first if asked for.
+     */
+    @Model
+    private static List<Directory> byDepth(Set<Directory> dirs, boolean highestFirst){
+        List<Directory> result = new ArrayList<Directory>(dirs);
+        Comparator<Directory> order = Comparator.comparingInt(Directory::getDepth);
+        result.sort(highestFirst ? order : order.reversed());
+        return result;
+    }
+
+    /**
+     * A class keeping track of the state of the filesystem after the changes checked so far.
+     */
+    private static final class Plan {
+
+        /**
+         * The directory of every thing that is moved, created or deleted, null when deleted.
+         */
+        private final Map<Thing, Directory> placed = new IdentityHashMap<Thing, Directory>();
+
+        /**
+         * The things that leave the directory they are in now.
+         */
+        private final Set<Thing> leaving = Collections.newSetFromMap(new IdentityHashMap<Thing, Boolean>());
+
+        /**
+         * The things that enter a directory, by the directory and their name key.
+         */
+        private final Map<Directory, Map<String, Thing>> entering = new IdentityHashMap<Directory, Map<String, Thing>>();
+
+        /**
+         * The change in the number of items of the directories.
+         */
+        private final Map<Directory, Integer> nbItemsChange = new IdentityHashMap<Directory, Integer>();
+
+        /**
+         * @return the directory of the given thing after the changes so far.
+         */
+        Directory directoryOf(Thing thing){
+            return placed.containsKey(thing) ? placed.get(thing) : thing.getDirectory();
+        }
+
+        /**
+         * @return whether the given thing is deleted by the changes so far.
+         */
+        boolean isDeleted(Thing thing){
+            return (placed.containsKey(thing) && placed.get(thing) == null) || thing.isTerminated;
+        }
+
+        /**
+         * @throws NameNotAvailableException
+         *         if another thing than the given one has the given name key in the given directory.
+         */
+        void checkName(Directory dir, String key, Thing thing, String name) throws NameNotAvailableException{
+            Thing other = entering.getOrDefault(dir, Collections.emptyMap()).get(key);
+            // Several items may share a key, so all of them are looked at.
+            if(other == null)
+                for(Thing item : dir.getItemsWithKey(key))
+                    if(item != thing && !leaving.contains(item)){
+                        other = item;
+                        break;
+                    }
+            if(other != null && other != thing)
+                throw new NameNotAvailableException(name);
+        }
+
+        /**
+         * Registers that the given thing leaves its directory.
+         */
+        void leave(Thing thing){
+            Directory dir = thing.getDirectory();
+            if(dir != null){
+                leaving.add(thing);
+                nbItemsChange.merge(dir, -1, Integer::sum);
+            }
+        }
+
+        /**
+         * Registers that the given thing enters the given directory with the given name key.
+         */
+        void enter(Thing thing, Directory dir, String key){
+            entering.computeIfAbsent(dir, d -> new HashMap<String, Thing>()).put(key, thing);
+            nbItemsChange.merge(dir, 1, Integer::sum);
+        }
+
+        /**
+         * @return the number of items of the given directory after the changes so far.
+         */
+        int getNbItems(Directory dir){
+            return dir.getNbItems() + nbItemsChange.getOrDefault(dir, 0);
+        }
+    }
+
+    /**
+     * A class of changes to one thing.
+     */
+    private static abstract class Change {
+
+        /**
+         * The thing that is changed.
+         */
+        final Thing thing;
+
+        Change(Thing thing){
+            this.thing = thing;
+        }
+
+        /**
+         * Checks whether this change is allowed after the changes in the given plan, and adds it to the plan.
+         */
+        abstract void check(Plan plan);
+
+        /**
+         * @return the directory the thing has to be taken out of, or null.
+         */
+        abstract Directory getSource();
+
+        /**
+         * Changes the thing, which is no longer in the content of its directory.
+         * @param modified
+         *        the things whose modification time has to be set.
+         * @return the directory the thing has to be put in, or null.
+         */
+        abstract Directory apply(Set<Thing> modified);
+
+        /**
+         * @return whether this change is made in the tree of the given journal.
+         */
+        boolean isRecordedBy(Journal journal){
+            return journal.holds(thing);
+        }
+
+        /**
+         * Records this change, made at the given time, in the given journal, before any change of
+         * the batch is made.
+         */
+        abstract void log(Journal journal, long millis);
+
+        /**
+         * Publishes this change to the subscriptions and file indexes, after all changes of the
+         * batch are made.
+         * @param from
+         *        the directory the thing was in before the batch.
+         * @param oldName
+         *        the name the thing had before the batch.
+         */
+        abstract void publish(Directory from, String oldName);
+    }
+
+    /**
+     * A class of creations of new files.
+     */
+    private static final class Create extends Change {
+
+        private final Directory dir;
+
+        Create(File file, Directory dir){
+            super(file);
+            this.dir = dir;
+        }
+
+        @Override
+        void check(Plan plan){
+            if(plan.isDeleted(dir))
+                throw new IllegalArgumentException();
+            if(!dir.isWritable())
+                throw new FileNotWritableException(dir);
+            plan.checkName(dir, thing.getNameKey(), thing, thing.getName());
+            plan.enter(thing, dir, thing.getNameKey());
+            plan.placed.put(thing, dir);
+        }
+
+        @Override
+        Directory getSource(){
+            return null;
+        }
+
+        @Override
+        Directory apply(Set<Thing> modified){
+            thing.setDirectory(dir);
+            return dir;
+        }
+
+        @Override
+        boolean isRecordedBy(Journal journal){
+            return journal.holds(dir);
+        }
+
+        @Override
+        void log(Journal journal, long millis){
+            journal.recordCreate((File) thing, dir);
+        }
+
+        @Override
+        void publish(Directory from, String oldName){
+            Subscription.created(thing);
+            FileIndex.placed(thing, null);
+        }
+    }
+
+    /**
+     * A class of moves of things to another directory.
+     */
+    private static final class Move extends Change {
+
+        private final Directory location;
+
+        Move(Thing thing, Directory location){
+            super(thing);
+            this.location = location;
+        }
+
+        @Override
+        void check(Plan plan){
+            Directory from = thing.getDirectory();
+            // A root is not in a directory it could be moved out of.
+            if(from == null || from == location || plan.isDeleted(location))
+                throw new IllegalArgumentException();
+            if(!location.isWritable())
+                throw new FileNotWritableException(location);
+            if(!from.isWritable())
+                throw new FileNotWritableException(from);
+            if(thing instanceof Directory){
+                Directory map = (Directory) thing;
+                if(!map.isWritable())
+                    throw new FileNotWritableException(map);
+                for(Thing at = location; at != null; at = plan.directoryOf(at))
+                    if(at == map)
+                        throw new LoopedDirectoryException(location);
+            }
+            plan.checkName(location, thing.getNameKey(), thing, thing.getName());
+            plan.leave(thing);
+            plan.enter(thing, location, thing.getNameKey());
+            plan.placed.put(thing, location);
+        }
+
+        @Override
+        Directory getSource(){
+            return thing.getDirectory();
+        }
+
+        @Override
+        Directory apply(Set<Thing> modified){
+            thing.setDirectory(location);
+            modified.add(location);
+            return location;
+        }
+
+        @Override
+        boolean isRecordedBy(Journal journal){
+            return journal.holds(thing) && journal.holds(location);
+        }
+
+        @Override
+        void log(Journal journal, long millis){
+            journal.record(Journal.MOVE, millis, thing.getAbsolutePath(), location.getAbsolutePath(), 0, (byte) 0);
+        }
+
+        @Override
+        void publish(Directory from, String oldName){
+            Subscription.moved(thing, from);
+            FileIndex.placed(thing, from);
+        }
+    }
+
+    /**
+     * A class of changes of names.
+     */
+    private static final class Rename extends Change {
+
+        private final String name;
+
+        Rename(Thing thing, String name){
+            super(thing);
+            this.name = name;
+        }
+
+        /**
+         * @return whether the name is changed at all.
+         */
+        private boolean isEffective(){
+            return thing.isValidName(name);
+        }
+
+        @Override
+        void check(Plan plan){
+            if(thing instanceof File && !((File) thing).isWritable())
+                throw new FileNotWritableException(thing);
+            if(thing instanceof Directory && !((Directory) thing).isWritable())
+                throw new FileNotWritableException(thing);
+            if(!isEffective())
+                return;
+            Directory dir = thing.getDirectory();
+            if(dir == null)
+                return;
+            String key = Thing.toNameKey(name);
+            plan.checkName(dir, key, thing, name);
+            plan.leave(thing);
+            plan.enter(thing, dir, key);
+        }
+
+        @Override
+        Directory getSource(){
+            return isEffective() ? thing.getDirectory() : null;
+        }
+
+        @Override
+        Directory apply(Set<Thing> modified){
+            if(!isEffective())
+                return null;
+            thing.setName(name);
+            modified.add(thing);
+            return thing.getDirectory();
+        }
+
+        @Override
+        boolean isRecordedBy(Journal journal){
+            return isEffective() && journal.holds(thing);
+        }
+
+        @Override
+        void log(Journal journal, long millis){
+            journal.record(Journal.RENAME, millis, thing.getAbsolutePath(), name, 0, (byte) 0);
+        }
+
+        @Override
+        void publish(Directory from, String oldName){
+            Subscription.renamed(thing, oldName);
+            if(thing instanceof File)
+                FileIndex.changed((File) thing);
+        }
+    }
+
+    /**
+     * A class of terminations of things.
+     */
+    private static final class Delete extends Change {
+
+        Delete(Thing thing){
+            super(thing);
+        }
+
+        @Override
+        void check(Plan plan){
+            Directory dir = thing.getDirectory();
+            if(dir != null && !dir.isWritable())
+                throw new FileNotWritableException(dir);
+            if(thing instanceof File && !((File) thing).isWritable())
+                throw new FileNotWritableException(thing);
+            if(thing instanceof Directory){
+                Directory map = (Directory) thing;
+                if(!map.isWritable())
+                    throw new FileNotWritableException(map);
+                if(plan.getNbItems(map) != 0)
+                    throw new DirectoryNotEmptyException(map);
+            }
+            plan.leave(thing);
+            plan.placed.put(thing, null);
+        }
+
+        @Override
+        Directory getSource(){
+            return thing.getDirectory();
+        }
+
+        @Override
+        Directory apply(Set<Thing> modified){
+            thing.setTerminated();
+            thing.setDirectory(null);
+            return null;
+        }
+
+        @Override
+        void log(Journal journal, long millis){
+            journal.record(Journal.TERMINATE, millis, thing.getAbsolutePath(), null, 0, (byte) 0);
+        }
+
+        @Override
+        void publish(Directory from, String oldName){
+            Subscription.terminated(thing, from);
+            FileIndex.placed(thing, from);
+        }
+    }
+}
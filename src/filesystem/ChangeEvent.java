@@ -0,0 +1,127 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Immutable;
+
+/**
+ * A class of immutable descriptions of one change to a thing, as delivered to subscriptions.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+@Immutable
+public final class ChangeEvent {
+
+    /**
+     * The kinds of changes.
+     */
+    public enum Kind {
+        /**
+         * The thing was made in a directory, or a tree was imported.
+         */
+        CREATED,
+        /**
+         * The size of the file changed. Resizes of one file that were not delivered yet are
+         * coalesced into the last one.
+         */
+        RESIZED,
+        /**
+         * The thing got another name.
+         */
+        RENAMED,
+        /**
+         * The thing was moved to another directory, or made a root.
+         */
+        MOVED,
+        /**
+         * The thing was terminated.
+         */
+        TERMINATED,
+        /**
+         * Changes were dropped because the queue of the subscription was full. The state of the
+         * subtree has to be read again, for instance from a snapshot.
+         */
+        OVERFLOWED
+    }
+
+    private final Kind kind;
+    private final Thing thing;
+    private final String path;
+    private final String oldName;
+    private final Directory oldDirectory;
+    private final int size;
+    private final long millis;
+
+    /**
+     * Makes a new event with the given values, happening now.
+     */
+    ChangeEvent(Kind kind, Thing thing, String path, String oldName, Directory oldDirectory, int size){
+        this.kind = kind;
+        this.thing = thing;
+        this.path = path;
+        this.oldName = oldName;
+        this.oldDirectory = oldDirectory;
+        this.size = size;
+        this.millis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the kind of change.
+     */
+    @Basic @Immutable
+    public Kind getKind(){
+        return kind;
+    }
+
+    /**
+     * @return the changed thing, or null for OVERFLOWED.
+     */
+    @Basic @Immutable
+    public Thing getThing(){
+        return thing;
+    }
+
+    /**
+     * @return the absolute path of the thing right after the change, or null for OVERFLOWED.
+     */
+    @Basic @Immutable
+    public String getPath(){
+        return path;
+    }
+
+    /**
+     * @return the name of the thing before a RENAMED change, null otherwise.
+     */
+    @Basic @Immutable
+    public String getOldName(){
+        return oldName;
+    }
+
+    /**
+     * @return the directory of the thing before a MOVED or TERMINATED change, null otherwise.
+     */
+    @Basic @Immutable
+    public Directory getOldDirectory(){
+        return oldDirectory;
+    }
+
+    /**
+     * @return the size of the file after a RESIZED change, 0 otherwise.
+     */
+    @Basic @Immutable
+    public int getSize(){
+        return size;
+    }
+
+    /**
+     * @return the time of the change, in milliseconds since the epoch.
+     */
+    @Basic @Immutable
+    public long getMillis(){
+        return millis;
+    }
+
+    @Override
+    public String toString(){
+        return kind + " " + path;
+    }
+}
@@ -3,8 +3,15 @@ package filesystem;
 import be.kuleuven.cs.som.annotate.Basic;
 import be.kuleuven.cs.som.annotate.Model;
 import be.kuleuven.cs.som.annotate.Raw;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -20,33 +27,49 @@ import java.util.ArrayList;
  * @invar A directory cannot contain two items with the same name
  *        , ignoring the difference between lower- and uppercase letters.
  *        | for item1 and item2 in directory:
- *        |      item1.getName().toLowerCase() != item2.getName().toLowerCase()
+ *        |      item1.getNameKey() != item2.getNameKey()
  * @invar A directory is always sorted based on the name of the items,
  *        , ignoring the difference between lower- and uppercase letters.
- *        | sortMap()
+ *        | for i in 1..getNbItems()-1:
+ *        |      getItemAt(i).getNameKey().compareTo(getItemAt(i+1).getNameKey()) <= 0
  *
  */
 
 public class Directory extends Thing {
 
-    /**
-     * Variable referencing the name of this map
-     */
-    private String name = null;
-
     /**
      * Variable stating if the users is allowed to change the name of the map or add or remove items from it
      */
-    private boolean isWriteable = true;
+    private volatile boolean isWriteable = true;
 
     /**
      * Variable which contains the content of the map
      */
     private ArrayList<Thing> content = new ArrayList<Thing>();
+
+    /**
+     * Variable indexing the content of the map by name, ignoring the difference between lower-
+     * and uppercase letters. When several items share a name, one of them is indexed.
+     * The index is only made when the first item is added, so empty maps stay small.
+     */
+    private HashMap<String, Thing> itemsByName = null;
+
+    /**
+     * Variable referencing the place in an opened image where the items of this map are still to
+     * be read, or null if its content is complete.
+     */
+    private volatile TreeImage.Unread unread = null;
+
     /**
-     * Variable stating the directory one level up of the filesystem.Directory
+     * The order in which the items of a directory are kept, ignoring the difference
+     * between lower- and uppercase letters.
      */
-    private Directory root = null;
+    private static final Comparator<Thing> ITEM_ORDER = Comparator.comparing(Thing::getNameKey);
+
+    /**
+     * Variable referencing the lock of this map in concurrent mode, made when it is first needed.
+     */
+    private volatile Locking.DirectoryLock lock = null;
 
 
     /**
@@ -57,21 +80,19 @@ public class Directory extends Thing {
      *        the name of the new directory.
      * @param isWriteable
      *        whether its writable.
-     * @effect A new Thing is made with the given directory.
-     *        |super(dir)
      * @effect the given name is set as the name.
      *        |setName(name)
      * @effect the given writable is set as the writable.
      *        |setWritable(isWritable)
-     * @effect the directory this is placed in gets sorted.
-     *        |getDirectory().sortMap()
+     * @effect The new directory is placed in the given directory.
+     *        |enter(dir)
      */
     @Raw
     public Directory(Directory dir, String name, boolean isWriteable){
-        super(dir);
+        super();
         setName(name);
         setWritable(isWriteable);
-        getDirectory().sortMap();
+        enter(dir);
     }
 
     /**
@@ -117,6 +138,21 @@ public class Directory extends Thing {
         this(name,true);
     }
 
+    /**
+     * Makes a new writable root directory that was created at the given time.
+     * @param name
+     *        the name of the new directory.
+     * @param creationMillis
+     *        the time of creation, in milliseconds since the epoch.
+     * @effect | super(creationMillis)
+     * @effect | setName(name)
+     */
+    @Raw
+    Directory(String name, long creationMillis){
+        super(creationMillis);
+        setName(name);
+    }
+
 
     /**
      * Check whether the given name is a legal name for a file.
@@ -131,7 +167,7 @@ public class Directory extends Thing {
      */
     @Override
     public boolean isValidName(String name){
-        return( name != null && name.matches("[a-zA-Z_0-9-]+"));
+        return hasValidCharacters(name, false);
     }
 
 
@@ -149,14 +185,19 @@ public class Directory extends Thing {
      */
     @Override
     public void terminate() throws FileNotWritableException, DirectoryNotEmptyException{
-        if(! isWriteable){
-            throw new FileNotWritableException(this);
-        }
-        if(getNbItems() != 0){
-            throw new DirectoryNotEmptyException(this);
+        Locking.lockStructure();
+        try {
+            if(! isWriteable){
+                throw new FileNotWritableException(this);
+            }
+            if(getNbItems() != 0){
+                throw new DirectoryNotEmptyException(this);
+            }
+            else{ super.terminate();
+        }} finally {
+            Locking.unlockStructure();
         }
-        else{ super.terminate();
-    }}
+    }
 
     /**
      * changes the name of the filesystem.Directory if writeable
@@ -168,15 +209,52 @@ public class Directory extends Thing {
      */
     @Override
     public void changeName(String name) throws FileNotWritableException {
-        if(!isWritable())
-            throw new FileNotWritableException(this);
-        super.changeName(name);
+        Locking.lockStructure();
+        try {
+            if(!isWritable())
+                throw new FileNotWritableException(this);
+            super.changeName(name);
+        } finally {
+            Locking.unlockStructure();
+        }
     }
 
 
 
     /**
-     * adds a filesystem.File, Map or filesystem.Link to the directory's content if the thing isn't a null reference
+     * Forgets the cached path of this map and of everything in it.
+     * @effect | if (getNbItems() > 0) then invalidateAllPaths()
+     */
+    @Override @Model
+    void invalidatePath(){
+        super.invalidatePath();
+        if(!isRawOrEmpty())
+            invalidateAllPaths();
+    }
+
+    /**
+     * Forgets the cached depth and root of this map and of everything in it.
+     * @effect | if (getNbItems() > 0) then invalidateAllAncestry()
+     */
+    @Override @Model
+    void invalidateAncestry(){
+        super.invalidateAncestry();
+        if(!isRawOrEmpty())
+            invalidateAllAncestry();
+    }
+
+    /**
+     * @return whether this map has no items. This is also the case while the map is still being
+     *         made, before its content exists.
+     */
+    @Raw @Model
+    private boolean isRawOrEmpty(){
+        return content == null || content.isEmpty();
+    }
+
+    /**
+     * adds a filesystem.File, Map or filesystem.Link to the directory's content if the thing isn't a null reference.
+     * The thing is inserted at its place in the ordered content.
      * @param thing
      *        the thing to be added
      * @throws IllegalArgumentException is thrown when the thing to be added is a null reference.
@@ -190,14 +268,290 @@ public class Directory extends Thing {
             throw new IllegalArgumentException();
         if(!isWritable())
             throw new FileNotWritableException(this);
-        content.add(thing);
+        insertItem(thing);
+    }
+
+    /**
+     * Inserts the given thing in the content, at the position its name takes in the ordering.
+     * @param thing
+     *        the thing to be inserted
+     * @post  the content is still sorted and contains the given thing
+     *        | hasAsItem(thing)
+     * @effect the disk usage and items of the thing are added to this map and the maps above it
+     *        | changeTotals(thing.getDiskUsage(), thing.getItemCount())
+     */
+    @Model @Raw
+    void insertItem(@Raw Thing thing){
+        readItems();
+        int index = Collections.binarySearch(content, thing, ITEM_ORDER);
+        if(index < 0)
+            index = -(index + 1);
+        content.add(index, thing);
+        Snapshot.changed(this);
+        if(itemsByName == null)
+            itemsByName = new HashMap<String, Thing>();
+        itemsByName.putIfAbsent(thing.getNameKey(), thing);
+        changeTotals(thing.getDiskUsage(), thing.getItemCount());
+    }
+
+    /**
+     * @return the items of this map with the given name key, in the order of the content. Unlike
+     *         getItem, this finds every item when several items share the key.
+     */
+    @Model
+    List<Thing> getItemsWithKey(String key){
+        readItems();
+        int low = 0;
+        int high = content.size();
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(content.get(middle).getNameKey().compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        List<Thing> result = new ArrayList<Thing>(1);
+        for(int i = low; i < content.size() && content.get(i).getNameKey().equals(key); i++)
+            result.add(content.get(i));
+        return result;
+    }
+
+    /**
+     * Removes the given thing from the content, if it is one of the items of this directory.
+     * @param thing
+     *        the thing to be removed
+     * @post  the content is still sorted and no longer contains the given thing
+     *        | !hasAsItem(thing)
+     * @effect the disk usage and items of the thing are taken away from this map and the maps above it
+     *        | changeTotals(-thing.getDiskUsage(), -thing.getItemCount())
+     */
+    @Model @Raw
+    void removeItem(@Raw Thing thing){
+        int index = positionOf(thing);
+        if(index < 0)
+            return;
+        content.remove(index);
+        Snapshot.changed(this);
+        changeTotals(-thing.getDiskUsage(), -thing.getItemCount());
+        String key = thing.getNameKey();
+        if(itemsByName.get(key) == thing){
+            // Items with the same name are neighbours, so one of them can take over the index.
+            if(index < content.size() && content.get(index).getNameKey().equals(key))
+                itemsByName.put(key, content.get(index));
+            else if(index > 0 && content.get(index - 1).getNameKey().equals(key))
+                itemsByName.put(key, content.get(index - 1));
+            else
+                itemsByName.remove(key);
+        }
+    }
+
+
+    /**
+     * Adds all the given things to the content in one merge.
+     * @param things
+     *        the things to be added, which are not yet items of this directory.
+     * @post  the content is still sorted and contains all the given things
+     *        | for thing in things: hasAsItem(thing)
+     * @effect the disk usage and items of the things are added to this map and the maps above it
+     *        | changeTotals(sum(thing.getDiskUsage()), sum(thing.getItemCount()))
+     */
+    @Model @Raw
+    void insertItems(List<Thing> things){
+        if(things.isEmpty())
+            return;
+        readItems();
+        things.sort(ITEM_ORDER);
+        int i = content.size() - 1;
+        int j = things.size() - 1;
+        for(int k = 0; k < things.size(); k++)
+            content.add(null);
+        // Merge from the back, so every item is moved at most once.
+        for(int to = content.size() - 1; j >= 0; to--){
+            if(i >= 0 && ITEM_ORDER.compare(content.get(i), things.get(j)) > 0)
+                content.set(to, content.get(i--));
+            else
+                content.set(to, things.get(j--));
+        }
+        Snapshot.changed(this);
+        if(itemsByName == null)
+            itemsByName = new HashMap<String, Thing>();
+        int diskUsage = 0;
+        int nbItems = 0;
+        for(Thing thing : things){
+            itemsByName.putIfAbsent(thing.getNameKey(), thing);
+            diskUsage += thing.getDiskUsage();
+            nbItems += thing.getItemCount();
+        }
+        changeTotals(diskUsage, nbItems);
+    }
+
+    /**
+     * Makes the given new things the content of this new, empty map. Their disk usage and items
+     * are not counted; see restoreTotals.
+     * @param things
+     *        the array holding the things.
+     * @param from
+     *        the index of the first thing.
+     * @param count
+     *        the number of things.
+     * @throws IllegalArgumentException
+     *         if the things are not ordered by their names, ignoring capital letters.
+     */
+    @Model @Raw
+    void adoptItems(Thing[] things, int from, int count) throws IllegalArgumentException{
+        content.ensureCapacity(count);
+        if(count > 0 && itemsByName == null)
+            itemsByName = new HashMap<String, Thing>(count * 4 / 3 + 1);
+        for(int i = from; i < from + count; i++){
+            Thing thing = things[i];
+            if(!content.isEmpty() && ITEM_ORDER.compare(content.get(content.size() - 1), thing) > 0)
+                throw new IllegalArgumentException("Items of " + getName() + " are not ordered");
+            // New things have no cached path or ancestry that would have to be forgotten.
+            thing.directory = this;
+            content.add(thing);
+            itemsByName.putIfAbsent(thing.getNameKey(), thing);
+        }
+    }
+
+    /**
+     * Sets the totals of this map from those of its items, which must be correct already.
+     * @post  | getTotalDiskUsage() == recountTotalDiskUsage()
+     * @post  | getTotalNbItems() == recountTotalNbItems()
+     */
+    @Model @Raw
+    void restoreTotals(){
+        int diskUsage = 0;
+        int nbItems = 0;
+        for(Thing item : content){
+            diskUsage += item.getDiskUsage();
+            nbItems += item.getItemCount();
+        }
+        totalDiskUsage = diskUsage;
+        totalNbItems = nbItems;
+    }
+
+    /**
+     * Sets the totals of this map to the given totals, which are read from an image.
+     * @post  | getTotalDiskUsage() == diskUsage && getTotalNbItems() == nbItems
+     */
+    @Model @Raw
+    void restoreTotals(int diskUsage, int nbItems){
+        totalDiskUsage = diskUsage;
+        totalNbItems = nbItems;
+    }
+
+    /**
+     * @return the place in an opened image where the items of this map are still to be read,
+     *         or null if its content is complete.
+     */
+    @Basic @Model
+    TreeImage.Unread getUnread(){
+        return unread;
+    }
+
+    /**
+     * @param unread
+     *        the place in an opened image where the items of this map are still to be read, or
+     *        null once they are in its content.
+     * @post  | getUnread() == unread
+     */
+    @Model @Raw
+    void setUnread(TreeImage.Unread unread){
+        this.unread = unread;
+    }
+
+    /**
+     * Reads the items of this map from an opened image, if that was not done yet. Every method
+     * using the content calls this first.
+     * @post  | getUnread() == null
+     */
+    @Model
+    void readItems(){
+        TreeImage.Unread items = unread;
+        if(items != null)
+            items.read(this);
+    }
+
+    /**
+     * Removes all the given things from the content in one pass.
+     * @param things
+     *        the things to be removed.
+     * @post  the content is still sorted and no longer contains any of the given things
+     *        | for thing in things: !hasAsItem(thing)
+     * @effect the disk usage and items of the things are taken away from this map and the maps above it
+     *        | changeTotals(-sum(thing.getDiskUsage()), -sum(thing.getItemCount()))
+     */
+    @Model @Raw
+    void removeItems(Set<Thing> things){
+        if(things.isEmpty())
+            return;
+        readItems();
+        List<Thing> removed = new ArrayList<Thing>();
+        int diskUsage = 0;
+        int nbItems = 0;
+        int kept = 0;
+        for(int i = 0; i < content.size(); i++){
+            Thing item = content.get(i);
+            if(things.contains(item)){
+                removed.add(item);
+                diskUsage += item.getDiskUsage();
+                nbItems += item.getItemCount();
+            } else {
+                content.set(kept++, item);
+            }
+        }
+        if(removed.isEmpty())
+            return;
+        content.subList(kept, content.size()).clear();
+        Snapshot.changed(this);
+        for(Thing item : removed){
+            String key = item.getNameKey();
+            if(itemsByName.get(key) == item){
+                int index = Collections.binarySearch(content, item, ITEM_ORDER);
+                if(index >= 0)
+                    itemsByName.put(key, content.get(index));
+                else
+                    itemsByName.remove(key);
+            }
+        }
+        changeTotals(-diskUsage, -nbItems);
+    }
+
+    /**
+     * Returns the position of the given thing in the content, starting from 0.
+     * @param thing
+     *        the thing we are looking for
+     * @return the position of the thing, or -1 if it is not an item of this directory.
+     */
+    @Model
+    private int positionOf(Thing thing){
+        if(thing == null)
+            return -1;
+        readItems();
+        int index = Collections.binarySearch(content, thing, ITEM_ORDER);
+        if(index < 0)
+            return -1;
+        String key = thing.getNameKey();
+        // Names are not unique, so look at the neighbours with the same name as well.
+        for(int i = index; i >= 0 && content.get(i).getNameKey().equals(key); i--){
+            if(content.get(i) == thing)
+                return i;
+        }
+        for(int i = index + 1; i < content.size() && content.get(i).getNameKey().equals(key); i++){
+            if(content.get(i) == thing)
+                return i;
+        }
+        return -1;
     }
 
     /**
      * @return returns the content of the directory
+     * @note   In concurrent mode the content is not guarded once it is returned; use getItemAt,
+     *         getItem or getNbItems, which lock the directory, when other threads may change it.
      */
     @Basic
     public ArrayList<Thing> getContent() {
+        readItems();
         return content;
     }
 
@@ -218,11 +572,134 @@ public class Directory extends Thing {
      *         |remove(directory).fromcontent
      */
     public void makeRoot(){
-        remove(getDirectory());
-        setDirectory(null);
+        Locking.lockStructure();
+        try {
+            Journal.logDetach(this);
+            Directory olddir = getDirectory();
+            remove(olddir);
+            setDirectory(null);
+            Subscription.moved(this, olddir);
+            FileIndex.placed(this, olddir);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockStructure();
+        }
     }
 
 
+    /**
+     * Finds an item whose name equals the characters between the given positions of the path,
+     * ignoring the difference between lower- and uppercase letters.
+     * @param path
+     *        the path holding the name.
+     * @param begin
+     *        the position of the first character of the name.
+     * @param end
+     *        the position after the last character of the name.
+     * @param type
+     *        the type of the file to find, or null to find a map or link.
+     * @return the item with the given name and type, or null if there is no such item.
+     */
+    @Model
+    Thing findItem(String path, int begin, int end, Type type){
+        Locking.lockRead(this);
+        try {
+            return findItemAt(path, begin, end, type);
+        } finally {
+            Locking.unlockRead(this);
+        }
+    }
+
+    /**
+     * @see findItem
+     * @pre the content of this map is locked for reading.
+     */
+    @Model
+    private Thing findItemAt(String path, int begin, int end, Type type){
+        readItems();
+        int low = 0;
+        int high = content.size() - 1;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            int comparison = PathResolver.compareKey(content.get(middle).getNameKey(), path, begin, end);
+            if(comparison < 0)
+                low = middle + 1;
+            else if(comparison > 0)
+                high = middle - 1;
+            else {
+                // Names are not unique, so look at the neighbours with the same name as well.
+                for(int i = middle; i >= 0 && PathResolver.matchesKey(content.get(i).getNameKey(), path, begin, end); i--){
+                    if(isOfType(content.get(i), type))
+                        return content.get(i);
+                }
+                for(int i = middle + 1; i < content.size() && PathResolver.matchesKey(content.get(i).getNameKey(), path, begin, end); i++){
+                    if(isOfType(content.get(i), type))
+                        return content.get(i);
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the given item is a file of the given type, or no file if the type is null.
+     */
+    @Model
+    private static boolean isOfType(Thing item, Type type){
+        if(type == null)
+            return !(item instanceof File);
+        return (item instanceof File) && ((File) item).getFileType() == type;
+    }
+
+    /**
+     * Returns the item with the given path. A path starting with a slash is absolute and starts with
+     * the name of the root of this map, as given by getAbsolutePath. Any other path is relative to
+     * this map. The name "." stands for a map itself and ".." for the map one level up.
+     * @param path
+     *        the path of the item, its names divided by forward slashes.
+     * @return the item with the given path, ignoring the difference between lower- and uppercase
+     *         letters, or null if there is no such item.
+     *         | if (thing.getAbsolutePath().equalsIgnoreCase(path)) then result == thing
+     * @throws IllegalArgumentException
+     *         if the given path is not effective.
+     *         | path == null
+     */
+    public Thing resolve(String path) throws IllegalArgumentException{
+        if(path == null)
+            throw new IllegalArgumentException();
+        Locking.lockRead(null);
+        try {
+            return PathResolver.resolve(this, path);
+        } finally {
+            Locking.unlockRead(null);
+        }
+    }
+
+    /**
+     * Returns the items with the given paths. Paths that share their first directories only
+     * walk through those directories once.
+     * @param paths
+     *        the paths of the items.
+     * @return for each path, the item it stands for, or null if there is no such item.
+     *         | for i in 0..paths.length-1: result[i] == resolve(paths[i])
+     * @throws IllegalArgumentException
+     *         if the given paths or one of them are not effective.
+     */
+    public Thing[] resolveAll(String... paths) throws IllegalArgumentException{
+        if(paths == null)
+            throw new IllegalArgumentException();
+        for(String path : paths)
+            if(path == null)
+                throw new IllegalArgumentException();
+        Locking.lockRead(null);
+        try {
+            return PathResolver.resolveAll(this, paths);
+        } finally {
+            Locking.unlockRead(null);
+        }
+    }
+
     /**
      * Checks if a filesystem.Directory contains an item one level down
      * @param thing
@@ -230,7 +707,12 @@ public class Directory extends Thing {
      * @return true or false
      */
     public boolean hasAsItem(Thing thing){
-        return(getContent().contains(thing));
+        Locking.lockRead(this);
+        try {
+            return(positionOf(thing) >= 0);
+        } finally {
+            Locking.unlockRead(this);
+        }
     }
 
     /**
@@ -245,8 +727,6 @@ public class Directory extends Thing {
      *         |oldDir.remove(this)
      * @effect the map is added to the content of the location
      *         |newDir.add(this)
-     * @effect after the thing is added, the map is sorted by name
-     *         |sortMap();
      * @effect the modification time of the location is changed to the current time
      *        |setModificationTime();
      * @throws LoopedDirectoryException is thrown when a map already exists within the destination, thus creating a loop
@@ -263,23 +743,31 @@ public class Directory extends Thing {
      */
     @Raw
     public void move(@Raw Directory location) throws FileNotWritableException, LoopedDirectoryException,IllegalArgumentException, NameNotAvailableException {
-        if(!isWriteable)
-            throw new FileNotWritableException(this);
-        if(!location.isWriteable)
-            throw new FileNotWritableException(location);
-        if(location == null)
-            throw new IllegalArgumentException();
-        if(!noLoops(location))
-            throw new LoopedDirectoryException(location);
-        if(!nameNotInMap(location))
-            throw new NameNotAvailableException(getName());
-        Directory olddir = getDirectory();
-        location.add(this);
-        setDirectory(location);
-        location.sortMap();
-        remove(olddir);
-        location.setModificationTime();
-
+        Locking.lockStructure();
+        try {
+            if(!isWriteable)
+                throw new FileNotWritableException(this);
+            if(!location.isWriteable)
+                throw new FileNotWritableException(location);
+            if(location == null)
+                throw new IllegalArgumentException();
+            if(!noLoops(location))
+                throw new LoopedDirectoryException(location);
+            if(!nameNotInMap(location))
+                throw new NameNotAvailableException(getName());
+            Directory olddir = getDirectory();
+            String from = Journal.pathOf(this);
+            location.add(this);
+            setDirectory(location);
+            remove(olddir);
+            location.setModificationTime();
+            Journal.logMove(this, from);
+            Subscription.moved(this, olddir);
+            FileIndex.placed(this, olddir);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockStructure();
+        }
     }
 
     /**
@@ -296,37 +784,10 @@ public class Directory extends Thing {
     @Raw
     @Model
     private boolean noLoops(@Raw Directory location){
-        Directory currentDirec = getDirectory();
-        //Hier gaat ni niet in recursie
-        if(currentDirec == null)
+        if(getDirectory() == null)
             return false;
-        else{
-            if(this == location){
-                return false;
-            }
-            Directory nextDir = location.getDirectory();
-            if(nextDir == null){
-                return true;}
-             return noLoops(nextDir);
-        }
+        return location != this && !location.isDirectOrIndirectChildOf(this);
     }
-    /**
-     * Sorts the arraylist alphabetically based on the name of the items.
-     * @post  The arraylist is sorted alphabetically, ignoring the difference
-     *        between capital and non-capital letters.
-     *        | if (items.get(i).getName().toLowerCase().compareTo(items.get(j).getName()) > 0) {
-     *                         Collections.swap(items, i, j);
-     */
-    @Model
-    protected void sortMap(){
-        ArrayList<Thing> items = getContent();
-        if(items.size() > 0){
-            for (int i = 0; i < items.size() - 1; i++) {
-                for (int j = i + 1; j < items.size(); j++) {
-                    if (items.get(i).getName().toLowerCase().compareTo(items.get(j).getName()) > 0) {
-                        Collections.swap(items, i, j);
-    }}}}}
-
     /**
      * Returns the item or submap at a given index.
      * @param index
@@ -335,30 +796,39 @@ public class Directory extends Thing {
      * @return The item at the index.
      */
     public Thing getItemAt(int index){
-        return getContent().get(index-1);
+        Locking.lockRead(this);
+        try {
+            return getContent().get(index-1);
+        } finally {
+            Locking.unlockRead(this);
+        }
     }
 
     /**
      * Returns an item in the directory that has the given name.
      * @param searchName
      *        The name of the item.
-     * @return The item with the given name. If there is no such item, null is returned.
+     * @return The item with the given name, ignoring the difference between lower and upper case
+     *         letters. If there is no such item, null is returned.
      *        | if "searchname" not in getContent(): return null
      *        | else return getContent().getItemAt(index)
-     * @effect The getItemAt() function returns the item with the index.
+     * @throws IllegalArgumentException
+     *         if the given name is not effective.
+     *        | searchName == null
      */
 
     public Thing getItem(String searchName) throws IllegalArgumentException{
-        sortMap();
-        int index = Collections.binarySearch(getContent(), new Directory( searchName), new Comparator<Thing>() {
-                    @Override
-                    public int compare(Thing item1, Thing item2) {
-                        return item1.getName().toLowerCase().compareTo(item2.getName().toLowerCase());
-                }});
-        if (index < 0){
-            return null;
+        if(searchName == null)
+            throw new IllegalArgumentException();
+        Locking.lockRead(this);
+        try {
+            readItems();
+            if(itemsByName == null)
+                return null;
+            return itemsByName.get(toNameKey(searchName));
+        } finally {
+            Locking.unlockRead(this);
         }
-        return getItemAt(index + 1);
     }
 
     /**
@@ -370,17 +840,15 @@ public class Directory extends Thing {
      */
 
     public boolean containsDiskItemWithName(String searchName){
-        sortMap();
-        int index = Collections.binarySearch(getContent(), new Directory( searchName), new Comparator<Thing>() {
-            @Override
-            public int compare(Thing item1, Thing item2) {
-                return item1.getName().toLowerCase().compareTo(item2.getName().toLowerCase());
-            }
-        });
-        if (index < 0){
+        if(searchName == null)
             return false;
+        Locking.lockRead(this);
+        try {
+            readItems();
+            return itemsByName != null && itemsByName.containsKey(toNameKey(searchName));
+        } finally {
+            Locking.unlockRead(this);
         }
-        return true;
     }
 
     /**
@@ -395,32 +863,58 @@ public class Directory extends Thing {
      */
 
     public int getIndexOf(Thing item) throws ArgumentNotFoundException {
-        sortMap();
-        if(! hasAsItem(item)){
+        int index;
+        Locking.lockRead(this);
+        try {
+            index = positionOf(item);
+        } finally {
+            Locking.unlockRead(this);
+        }
+        if(index < 0){
             throw new ArgumentNotFoundException();
         }
-        return getContent().indexOf(item) + 1;
+        return index + 1;
     }
 
     /**
      * Gives the number of items and maps in the map.
      */
     public int getNbItems(){
-        return getContent().size();
+        Locking.lockRead(this);
+        try {
+            TreeImage.Unread items = unread;
+            if(items != null)
+                return items.getNbItems();
+            return getContent().size();
+        } finally {
+            Locking.unlockRead(this);
+        }
     }
 
     /**
      * Gives the total number of items in the map and in the submaps in the map.
      * @return the total amount.
+     *         | result == recountTotalNbItems()
+     * @throws IllegalStateException
+     *         if the consistency check is on and the registered total differs from a full recount.
+     *         | isCheckingTotals() && totalNbItems != recountTotalNbItems()
      */
     public int getTotalNbItems(){
+        int total = (int) TOTAL_NB_ITEMS.getVolatile(this);
+        if(checkingTotals && total != recountTotalNbItems())
+            throw new IllegalStateException("Number of items in " + getAbsolutePath() + " is out of date");
+        return total;
+    }
 
+    /**
+     * Counts the items in the map and in all of its submaps by walking through them.
+     * @return the total amount.
+     */
+    public int recountTotalNbItems(){
         int j = 0;
-        for(int i=0; i<getContent().size();i++){
-            if(getContent().get(i) instanceof Directory){
-                 Directory newDir = (Directory) getContent().get(i);
-                j+= newDir.getNbItems();
-            }
+        for(Thing item : getContent()){
+            if(item instanceof Directory)
+                j += ((Directory) item).recountTotalNbItems();
             j++;
         }
         return j;
@@ -450,20 +944,75 @@ public class Directory extends Thing {
      */
     @Raw
     public void setWritable(boolean newWrite) {
-        this.isWriteable = newWrite;
+        Directory dir = lockDirectory();
+        try {
+            this.isWriteable = newWrite;
+            Journal.logWritable(this, newWrite);
+        } finally {
+            Locking.unlockWrite(dir);
+        }
     }
 
+    /**********************************************************
+     * disk usage
+     **********************************************************/
+
+    /**
+     * Variable registering the total amount of bytes occupied by the files in this map and its submaps.
+     */
+    private int totalDiskUsage = 0;
+
+    /**
+     * Variable registering the number of items in this map and its submaps.
+     */
+    private int totalNbItems = 0;
+
+    /**
+     * Handles on the totals, to change them atomically in concurrent mode.
+     */
+    private static final VarHandle TOTAL_DISK_USAGE;
+    private static final VarHandle TOTAL_NB_ITEMS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TOTAL_DISK_USAGE = lookup.findVarHandle(Directory.class, "totalDiskUsage", int.class);
+            TOTAL_NB_ITEMS = lookup.findVarHandle(Directory.class, "totalNbItems", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Variable stating whether every read of the total disk usage or number of items
+     * is checked against a full recount.
+     */
+    private static boolean checkingTotals = false;
+
     /**
      * A method to check the disk usage of the items within the map.
      * @return returns the total amount of bytes which a map occupies
+     *         | result == recountTotalDiskUsage()
+     * @throws IllegalStateException
+     *         if the consistency check is on and the registered total differs from a full recount.
+     *         | isCheckingTotals() && totalDiskUsage != recountTotalDiskUsage()
      */
     public int getTotalDiskUsage(){
+        int total = (int) TOTAL_DISK_USAGE.getVolatile(this);
+        if(checkingTotals && total != recountTotalDiskUsage())
+            throw new IllegalStateException("Disk usage of " + getAbsolutePath() + " is out of date");
+        return total;
+    }
+
+    /**
+     * Counts the disk usage of the items within the map by walking through all its submaps.
+     * @return returns the total amount of bytes which a map occupies
+     */
+    public int recountTotalDiskUsage(){
         int j = 0;
-        int nb = getNbItems();
-        for(int i = 0; i < nb; i++){
-            Thing currentItem = getItemAt(1+i);
+        for(Thing currentItem : getContent()){
             if(currentItem instanceof Directory) {
-                j += ((Directory) currentItem).getTotalDiskUsage();
+                j += ((Directory) currentItem).recountTotalDiskUsage();
             } else if (currentItem instanceof File) {
                 j+= ((File) currentItem).getSize();
             }
@@ -471,4 +1020,236 @@ public class Directory extends Thing {
         return j;
     }
 
+    /**
+     * @return the total amount of bytes which this map occupies.
+     */
+    @Override @Model
+    int getDiskUsage(){
+        return totalDiskUsage;
+    }
+
+    /**
+     * @return the number of items this map stands for in the map above it: itself and everything in it.
+     */
+    @Override @Model
+    int getItemCount(){
+        return 1 + totalNbItems;
+    }
+
+    /**
+     * Adds the given amount of bytes to the disk usage of this map and all the maps above it.
+     * @param delta
+     *        the amount of bytes, negative when bytes are freed.
+     * @effect | changeTotals(delta, 0)
+     */
+    @Model
+    void changeDiskUsage(int delta){
+        Snapshot.changed(this);
+        changeTotals(delta, 0);
+    }
+
+    /**
+     * Adds the given amounts to the totals of this map and all the maps above it.
+     * @param diskUsage
+     *        the amount of bytes, negative when bytes are freed.
+     * @param nbItems
+     *        the number of items, negative when items are removed.
+     * @post  the total disk usage and number of items of this map and of every map above it
+     *        are changed by the given amounts.
+     */
+    @Model
+    void changeTotals(int diskUsage, int nbItems){
+        if(diskUsage == 0 && nbItems == 0)
+            return;
+        if(Locking.isConcurrent()){
+            // Only the directories above can not change, so other threads may be changing the
+            // totals of the same directories for items in unrelated submaps.
+            for(Directory dir = this; dir != null; dir = dir.getDirectory()){
+                TOTAL_DISK_USAGE.getAndAdd(dir, diskUsage);
+                TOTAL_NB_ITEMS.getAndAdd(dir, nbItems);
+            }
+        } else {
+            for(Directory dir = this; dir != null; dir = dir.getDirectory()){
+                dir.totalDiskUsage += diskUsage;
+                dir.totalNbItems += nbItems;
+            }
+        }
+    }
+
+    /**********************************************************
+     * snapshots
+     **********************************************************/
+
+    /**
+     * Returns an immutable view of this map and everything in it as it is now. Reading the view
+     * never takes a lock and is not affected by anything that changes afterwards. The first time
+     * a view of a tree is asked for, it is made while all other operations wait; from then on,
+     * every operation publishes the new views of the maps it changed, sharing the views of all
+     * other submaps with the old version.
+     *
+     * @return a view of this map.
+     *         | result.getName().equals(getName()) &&
+     *         | result.getTotalDiskUsage() == getTotalDiskUsage() &&
+     *         | result.getTotalNbItems() == getTotalNbItems()
+     */
+    public Snapshot getSnapshot(){
+        Snapshot result = getCachedSnapshot();
+        if(result != null)
+            return result;
+        Locking.lockStructure();
+        try {
+            return Snapshot.of(this);
+        } finally {
+            Locking.unlockStructure();
+        }
+    }
+
+    /**********************************************************
+     * streaming
+     **********************************************************/
+
+    /**
+     * Returns a spliterator over everything below this map, without the map itself, which reads
+     * the content of every directory only when it is reached.
+     * @param breadthFirst
+     *        whether the items are visited level by level instead of every directory right
+     *        before its items.
+     * @return a spliterator that is ORDERED when it walks depth first, and whose estimated size
+     *         is the total number of items of this map.
+     *         | result.estimateSize() == getTotalNbItems()
+     * @note  Changes made while the spliterator is walking may or may not be seen.
+     */
+    public Spliterator<Thing> subtreeSpliterator(boolean breadthFirst){
+        return new SubtreeSpliterator(this, breadthFirst);
+    }
+
+    /**
+     * @effect | streamSubtree(false)
+     */
+    public Stream<Thing> streamSubtree(){
+        return streamSubtree(false);
+    }
+
+    /**
+     * Returns a sequential stream of everything below this map, without the map itself. The
+     * stream can be made parallel; a parallel depth-first stream keeps its order.
+     * @param breadthFirst
+     *        whether the items are visited level by level.
+     * @return | StreamSupport.stream(subtreeSpliterator(breadthFirst), false)
+     */
+    public Stream<Thing> streamSubtree(boolean breadthFirst){
+        return StreamSupport.stream(subtreeSpliterator(breadthFirst), false);
+    }
+
+    /**********************************************************
+     * file indexes
+     **********************************************************/
+
+    /**
+     * Makes an index on the type, size and modification time of all the files in this map and
+     * its submaps, which queries on this map or a map below it use instead of walking through it.
+     * @return a new index, which is kept up to date until it is closed.
+     *         | result.getDirectory() == this
+     * @throws IllegalArgumentException
+     *         if this map is terminated.
+     * @throws IllegalStateException
+     *         if this map has an index already.
+     * @see Query
+     */
+    public FileIndex createFileIndex() throws IllegalArgumentException, IllegalStateException {
+        return FileIndex.create(this);
+    }
+
+    /**********************************************************
+     * change notifications
+     **********************************************************/
+
+    /**
+     * Subscribes the given consumer to the changes of this map and everything in it, delivered
+     * on the common fork-join pool.
+     * @effect | subscribe(consumer, capacity, ForkJoinPool.commonPool())
+     */
+    public Subscription subscribe(Consumer<List<ChangeEvent>> consumer, int capacity) throws IllegalArgumentException {
+        return subscribe(consumer, capacity, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribes the given consumer to the changes of this map and everything in it. The thread
+     * making a change never waits for the consumer: the events are delivered in batches on the
+     * given executor, and at most the given number of events wait for the consumer.
+     * @param consumer
+     *        the consumer of the batches of events.
+     * @param capacity
+     *        the number of events that may wait for the consumer.
+     * @param executor
+     *        the executor running the deliveries.
+     * @return a new subscription, which delivers events until it is closed.
+     *         | result.getDirectory() == this
+     * @throws IllegalArgumentException
+     *         if the consumer or executor is not effective or the capacity is not positive.
+     * @see Subscription
+     */
+    public Subscription subscribe(Consumer<List<ChangeEvent>> consumer, int capacity, Executor executor)
+            throws IllegalArgumentException {
+        return Subscription.subscribe(this, consumer, executor, capacity);
+    }
+
+    /**
+     * @return the lock of this map, which is made the first time it is asked for.
+     */
+    @Model
+    Locking.DirectoryLock getLock(){
+        Locking.DirectoryLock result = lock;
+        if(result == null){
+            synchronized (this){
+                if(lock == null)
+                    lock = new Locking.DirectoryLock();
+                result = lock;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the filesystem is in concurrent mode.
+     */
+    @Basic
+    public static boolean isConcurrent(){
+        return Locking.isConcurrent();
+    }
+
+    /**
+     * Turns the concurrent mode of the filesystem on or off. In concurrent mode, every directory
+     * is guarded by a read/write lock of its own, so things in unrelated directories can be
+     * changed by several threads at the same time and reads do not wait for each other. Moving,
+     * renaming, terminating or making a root of a directory waits for all other operations.
+     * @param concurrent
+     *        whether the filesystem is used by several threads.
+     * @pre   No other thread uses any thing while the mode is changed.
+     * @post  | isConcurrent() == concurrent
+     */
+    public static void setConcurrent(boolean concurrent){
+        Locking.setConcurrent(concurrent);
+    }
+
+    /**
+     * @return whether every read of the total disk usage or number of items is checked
+     *         against a full recount.
+     */
+    @Basic
+    public static boolean isCheckingTotals(){
+        return checkingTotals;
+    }
+
+    /**
+     * Turns the consistency check of the totals of all maps on or off.
+     * @param check
+     *        whether every read of the total disk usage or number of items is checked
+     *        against a full recount.
+     * @post  | isCheckingTotals() == check
+     */
+    public static void setCheckingTotals(boolean check){
+        checkingTotals = check;
+    }
+
 }
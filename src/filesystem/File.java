@@ -67,12 +67,35 @@ public class File extends Thing {
      */
     @Raw
     public File(Directory dir,String name, int size, boolean writable, Type type) {
-        super(dir);
+        super();
         setName(name);
         setSize(size);
         setWritable(writable);
         this.type = type;
-        getDirectory().sortMap();
+        enter(dir);
+    }
+
+    /**
+     * Initialize a new writable file without a directory, created at the given time.
+     *
+     * @param   name
+     *          The name of the new file.
+     * @param   size
+     *          The size of the new file.
+     * @param   type
+     *          The type of the new file.
+     * @param   creationMillis
+     *          The time of creation, in milliseconds since the epoch.
+     * @effect  | super(creationMillis)
+     * @effect  | setName(name)
+     * @effect  | setSize(size)
+     */
+    @Raw
+    File(String name, int size, Type type, long creationMillis) {
+        super(creationMillis);
+        setName(name);
+        setSize(size);
+        this.type = type;
     }
 
     /**
@@ -101,9 +124,12 @@ public class File extends Thing {
     }
 
     /**
-     * Variable referencing the directory of the file
+     * @return returns the type of the file
      */
-    private Directory directory = new Directory("dir");
+    @Basic @Immutable
+    public Type getFileType() {
+        return type;
+    }
 
 
 
@@ -130,12 +156,6 @@ public class File extends Thing {
      * name - total programming
      **********************************************************/
 
-    /**
-     * Variable referencing the name of this file.
-     * @note		See Coding Rule 32, for information on the initialization of fields.
-     */
-    private String name = null;
-
     /**
      * Change the name of this file to the given name.
      *
@@ -152,19 +172,27 @@ public class File extends Thing {
      * of this file is updated.
      * | if (isValidName(name) && isWritable())
      * | then setModificationTime()
-     * @effect after the filename is changed, the files directory is sorted by name
-     *         |getDirectory.sortMap();
      */
     @Override
     public void changeName(String name) throws FileNotWritableException {
-        if (isWritable()) {
-            if (isValidName(name)){
-                setName(name);
-                setModificationTime();
-                getDirectory().sortMap();
+        Directory dir = lockDirectory();
+        try {
+            if (isWritable()) {
+                if (isValidName(name)){
+                    String from = Journal.pathOf(this);
+                    String oldName = getName();
+                    setName(name);
+                    setModificationTime();
+                    Journal.logRename(this, from);
+                    Subscription.renamed(this, oldName);
+                    FileIndex.changed(this);
+                }
+            } else {
+                throw new FileNotWritableException(this);
             }
-        } else {
-            throw new FileNotWritableException(this);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(dir);
         }
     }
 
@@ -202,10 +230,23 @@ public class File extends Thing {
      *         | isValidSize(size)
      * @post   The given size is registered as the size of this file.
      *         | new.getSize() == size
+     * @effect  The difference in size is added to the disk usage of the directory of this file.
+     *         | getDirectory().changeDiskUsage(size - getSize())
      */
     @Raw @Model
     private void setSize(int size) {
+        if(getDirectory() != null)
+            getDirectory().changeDiskUsage(size - this.size);
         this.size = size;
+        Snapshot.changed(this);
+    }
+
+    /**
+     * @return the size of this file.
+     */
+    @Override @Model
+    int getDiskUsage() {
+        return getSize();
     }
 
     /**
@@ -242,7 +283,6 @@ public class File extends Thing {
      */
     public void enlarge(int delta) throws FileNotWritableException {
         changeSize(delta);
-        setModificationTime();
     }
 
     /**
@@ -258,7 +298,6 @@ public class File extends Thing {
      */
     public void shorten(int delta) throws FileNotWritableException {
         changeSize(-delta);
-        setModificationTime();
     }
 
     /**
@@ -279,11 +318,20 @@ public class File extends Thing {
      */
     @Model
     private void changeSize(int delta) throws FileNotWritableException {
-        if (isWritable()) {
-            setSize(getSize()+delta);
-            setModificationTime();
-        }else{
-            throw new FileNotWritableException(this);
+        Directory dir = lockDirectory();
+        try {
+            if (isWritable()) {
+                setSize(getSize()+delta);
+                setModificationTime();
+                Journal.logResize(this);
+                Subscription.resized(this);
+                FileIndex.changed(this);
+            }else{
+                throw new FileNotWritableException(this);
+            }
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(dir);
         }
     }
 
@@ -299,7 +347,7 @@ public class File extends Thing {
     /**
      * Variable registering whether or not this file is writable.
      */
-    private boolean isWritable = true;
+    private volatile boolean isWritable = true;
 
     /**
      * Check whether this file is writable.
@@ -320,7 +368,13 @@ public class File extends Thing {
      */
     @Raw
     public void setWritable(boolean isWritable) {
-        this.isWritable = isWritable;
+        Directory dir = lockDirectory();
+        try {
+            this.isWritable = isWritable;
+            Journal.logWritable(this, isWritable);
+        } finally {
+            Locking.unlockWrite(dir);
+        }
     }
 
     /**
@@ -334,8 +388,6 @@ public class File extends Thing {
      *         |this.remove();
      * @effect the filesystem.File is added to the list of content of the designated location
      *         |location.add(this)
-     * @effect after the thing is added, the map is sorted by name
-     *        |sortMap();
      * @effect the modification time of the location is changed to the current time
      *        |setModificationTime();
      * @throws IllegalArgumentException
@@ -346,35 +398,44 @@ public class File extends Thing {
      *         |(!nameNotInMap(location)
      * @throws FileNotWritableException
      *         this is throw if the location or current directory is not writable.
-     *         | !getDirectory().isWriteable() | !location.isWriteable()
+     *         | (getDirectory() != null && !getDirectory().isWriteable()) | !location.isWriteable()
      */
     @Raw
     public void move(Directory location) throws FileNotWritableException,IllegalArgumentException, NameNotAvailableException {
-        if(!location.isWriteable())
-            throw new FileNotWritableException(location);
-        if(!getDirectory().isWriteable())
-            throw new FileNotWritableException(getDirectory());
-        if(!isValidLocation(location))
-            throw new IllegalArgumentException();
-        if(!nameNotInMap(location))
-            throw new NameNotAvailableException(getName());
-        Directory olddir = getDirectory();
-        setDirectory(location);
-        location.add(this);
-        location.sortMap();
-        remove(olddir);
-        location.setModificationTime();
+        Directory olddir = lockDirectory(location);
+        try {
+            if(!location.isWriteable())
+                throw new FileNotWritableException(location);
+            if(olddir != null && !olddir.isWriteable())
+                throw new FileNotWritableException(olddir);
+            if(!isValidLocation(location))
+                throw new IllegalArgumentException();
+            if(!nameNotInMap(location))
+                throw new NameNotAvailableException(getName());
+            String from = Journal.pathOf(this);
+            setDirectory(location);
+            location.add(this);
+            remove(olddir);
+            location.setModificationTime();
+            Journal.logMove(this, from);
+            Subscription.moved(this, olddir);
+            FileIndex.placed(this, olddir);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(olddir, location);
+        }
     }
 
 
 
     /**
-     *
-     * @return returns the directory path of a file divided by forward slashes. The file type is specified at the end of the path.
+     * The file type is specified at the end of the path of a file.
+     * @return returns the name of the file followed by its extension
+     *        | getName() + getType()
      */
-    @Override
-    public String getAbsolutePath(){
-        return( super.getAbsolutePath() + type.getExtension());
+    @Override @Model
+    String getPathName(){
+        return getName() + type.getExtension();
     }
 
 
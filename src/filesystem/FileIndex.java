@@ -0,0 +1,323 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A class of secondary indexes on the type, size and modification time of all the files in a
+ * directory and its submaps, used by queries to find files without walking through the tree.
+ *
+ * An index is kept up to date by the changes themselves: making, resizing, renaming, moving and
+ * terminating a file, and moving, importing or terminating a directory above it. When no index
+ * exists, a change costs a single read of a volatile field.
+ *
+ * A file that was never modified is indexed with its creation time as modification time.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class FileIndex implements AutoCloseable {
+
+    /**
+     * Variable referencing the index of every directory that has one. The map is replaced as a
+     * whole when an index is made or closed.
+     */
+    private static volatile Map<Directory, FileIndex> indexes = Collections.emptyMap();
+
+    private final Directory directory;
+
+    /**
+     * The files per type, per size and per modification time, and the size and time every file
+     * is indexed with. Guarded by this index.
+     */
+    private final EnumMap<Type, Set<File>> byType = new EnumMap<Type, Set<File>>(Type.class);
+    private final TreeMap<Integer, Set<File>> bySize = new TreeMap<Integer, Set<File>>();
+    private final TreeMap<Long, Set<File>> byTime = new TreeMap<Long, Set<File>>();
+    private final Map<File, long[]> keys = new IdentityHashMap<File, long[]>();
+
+    private boolean isClosed = false;
+
+    /**
+     * Makes a new empty index that is not registered yet.
+     */
+    @Model
+    private FileIndex(Directory directory){
+        this.directory = directory;
+    }
+
+    /**
+     * Makes an index of all the files in the given directory and its submaps.
+     * @param directory
+     *        the directory whose files are indexed.
+     * @return the new index.
+     * @throws IllegalArgumentException
+     *         if the directory is not effective or terminated.
+     * @throws IllegalStateException
+     *         if the directory has an index already.
+     */
+    static FileIndex create(Directory directory) throws IllegalArgumentException, IllegalStateException {
+        if(directory == null || directory.isTerminated)
+            throw new IllegalArgumentException();
+        FileIndex index = new FileIndex(directory);
+        // No change may happen between the walk and the registration.
+        Locking.lockStructure();
+        try {
+            synchronized (FileIndex.class) {
+                if(indexes.containsKey(directory))
+                    throw new IllegalStateException("The directory has an index");
+                index.addAll(directory);
+                Map<Directory, FileIndex> next = new IdentityHashMap<Directory, FileIndex>(indexes);
+                next.put(directory, index);
+                indexes = next;
+            }
+        } finally {
+            Locking.unlockStructure();
+        }
+        return index;
+    }
+
+    /**
+     * @return the directory whose files are indexed.
+     */
+    @Basic
+    public Directory getDirectory(){
+        return directory;
+    }
+
+    /**
+     * @return the number of files indexed.
+     */
+    public synchronized int getNbFiles(){
+        return keys.size();
+    }
+
+    /**
+     * @return whether this index is closed.
+     */
+    public synchronized boolean isClosed(){
+        return isClosed;
+    }
+
+    /**
+     * Stops keeping this index up to date and forgets the files in it.
+     */
+    @Override
+    public void close(){
+        synchronized (FileIndex.class) {
+            if(indexes.get(directory) == this){
+                Map<Directory, FileIndex> next = new IdentityHashMap<Directory, FileIndex>(indexes);
+                next.remove(directory);
+                indexes = next.isEmpty() ? Collections.emptyMap() : next;
+            }
+        }
+        synchronized (this) {
+            isClosed = true;
+            byType.clear();
+            bySize.clear();
+            byTime.clear();
+            keys.clear();
+        }
+    }
+
+    /**
+     * @return the index of the given directory or of the nearest directory above it, or null.
+     */
+    static FileIndex covering(Directory dir){
+        Map<Directory, FileIndex> all = indexes;
+        if(all.isEmpty())
+            return null;
+        for(Thing at = dir; at != null; at = at.getDirectory()){
+            FileIndex index = all.get(at);
+            if(index != null)
+                return index;
+        }
+        return null;
+    }
+
+    /**********************************************************
+     * keeping up to date
+     **********************************************************/
+
+    /**
+     * @return whether any index exists.
+     */
+    static boolean isActive(){
+        return !indexes.isEmpty();
+    }
+
+    /**
+     * Indexes the new size or modification time of the given file.
+     */
+    static void changed(File file){
+        if(indexes.isEmpty())
+            return;
+        for(FileIndex index : above(file.getDirectory()))
+            index.update(file);
+    }
+
+    /**
+     * Indexes the given thing, and everything in it, at its new place, after it was made in, moved
+     * out of or terminated in the given directory, which is null for a new thing. The indexes
+     * above both places are left as they are.
+     */
+    static void placed(Thing thing, Directory from){
+        if(indexes.isEmpty() || !(thing instanceof File || thing instanceof Directory))
+            return;
+        List<FileIndex> before = above(from);
+        List<FileIndex> after = thing.isTerminated ? Collections.emptyList() : above(thing.getDirectory());
+        for(FileIndex index : before)
+            if(!after.contains(index))
+                index.removeAll(thing);
+        for(FileIndex index : after)
+            if(!before.contains(index))
+                index.addAll(thing);
+    }
+
+    /**
+     * @return the indexes of the given directory and the directories above it.
+     */
+    @Model
+    private static List<FileIndex> above(Directory dir){
+        Map<Directory, FileIndex> all = indexes;
+        List<FileIndex> result = Collections.emptyList();
+        for(Thing at = dir; at != null; at = at.getDirectory()){
+            FileIndex index = all.get(at);
+            if(index != null){
+                if(result.isEmpty())
+                    result = new ArrayList<FileIndex>(2);
+                result.add(index);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the given file, or all the files in the given directory, to this index.
+     */
+    @Model
+    private void addAll(Thing thing){
+        List<File> files = filesIn(thing);
+        synchronized (this) {
+            if(!isClosed)
+                for(File file : files)
+                    add(file);
+        }
+    }
+
+    /**
+     * Removes the given file, or all the files in the given directory, from this index.
+     */
+    @Model
+    private void removeAll(Thing thing){
+        List<File> files = filesIn(thing);
+        synchronized (this) {
+            if(!isClosed)
+                for(File file : files)
+                    remove(file);
+        }
+    }
+
+    /**
+     * @return the given file, or all the files in the given directory. The directories are walked
+     *         through without holding the lock of this index, which changes take after theirs.
+     */
+    @Model
+    private static List<File> filesIn(Thing thing){
+        List<File> files = new ArrayList<File>();
+        if(thing instanceof File)
+            files.add((File) thing);
+        else
+            ((Directory) thing).streamSubtree().forEach(item -> {
+                if(item instanceof File)
+                    files.add((File) item);
+            });
+        return files;
+    }
+
+    /**
+     * Indexes the given file again with its current size and modification time.
+     */
+    @Model
+    private synchronized void update(File file){
+        if(isClosed)
+            return;
+        long[] old = keys.get(file);
+        if(old != null && old[0] == file.getSize() && old[1] == modificationOf(file))
+            return;
+        remove(file);
+        add(file);
+    }
+
+    @Model
+    private void add(File file){
+        long[] key = {file.getSize(), modificationOf(file)};
+        if(keys.putIfAbsent(file, key) != null)
+            return;
+        byType.computeIfAbsent(file.getFileType(), type -> newSet()).add(file);
+        bySize.computeIfAbsent((int) key[0], size -> newSet()).add(file);
+        byTime.computeIfAbsent(key[1], millis -> newSet()).add(file);
+    }
+
+    @Model
+    private void remove(File file){
+        long[] key = keys.remove(file);
+        if(key == null)
+            return;
+        removeFrom(byType, file.getFileType(), file);
+        removeFrom(bySize, (int) key[0], file);
+        removeFrom(byTime, key[1], file);
+    }
+
+    @Model
+    private static <K> void removeFrom(Map<K, Set<File>> map, K key, File file){
+        Set<File> files = map.get(key);
+        if(files != null && files.remove(file) && files.isEmpty())
+            map.remove(key);
+    }
+
+    @Model
+    private static Set<File> newSet(){
+        return Collections.newSetFromMap(new IdentityHashMap<File, Boolean>(2));
+    }
+
+    /**
+     * @return the modification time the given file is indexed with.
+     */
+    static long modificationOf(File file){
+        return file.isModified() ? file.getModificationMillis() : file.getCreationMillis();
+    }
+
+    /**********************************************************
+     * lookups, for queries holding the lock of this index
+     **********************************************************/
+
+    /**
+     * @return the files of the given type.
+     */
+    Set<File> ofType(Type type){
+        return byType.getOrDefault(type, Collections.emptySet());
+    }
+
+    /**
+     * @return the files per size, from the given to the given size.
+     */
+    NavigableMap<Integer, Set<File>> ofSize(int min, int max){
+        return bySize.subMap(min, true, max, true);
+    }
+
+    /**
+     * @return the files per modification time, from the given to the given time.
+     */
+    NavigableMap<Long, Set<File>> ofTime(long min, long max){
+        return byTime.subMap(min, true, max, true);
+    }
+}
@@ -0,0 +1,87 @@
+package filesystem;
+
+/**
+ * A small program reporting how many bytes of heap a file, directory and link take,
+ * including their entry in the directory that holds them.
+ *
+ * @note  The numbers are measured by comparing the used heap before and after making many
+ *        items, so they are estimates. Run with a fixed heap (e.g. -Xms1g -Xmx1g) for stable results.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public class FootprintReport {
+
+    /**
+     * The number of items of each kind that is made for one measurement.
+     */
+    private static final int NB_ITEMS = 200_000;
+
+    public static void main(String[] args) {
+        int nbItems = args.length > 0 ? Integer.parseInt(args[0]) : NB_ITEMS;
+        System.out.printf("File      : %6.1f bytes%n", measureFiles(nbItems));
+        System.out.printf("Directory : %6.1f bytes%n", measureDirectories(nbItems));
+        System.out.printf("Link      : %6.1f bytes%n", measureLinks(nbItems));
+    }
+
+    /**
+     * @return the average number of bytes taken by a new file in a directory.
+     */
+    public static double measureFiles(int nbItems) {
+        Directory dir = new Directory("files");
+        long before = usedMemory();
+        for(int i = 0; i < nbItems; i++)
+            new File(dir, "file" + i, i, true, Type.TXT);
+        long after = usedMemory();
+        return bytesPerItem(dir, before, after, nbItems);
+    }
+
+    /**
+     * @return the average number of bytes taken by a new empty directory in a directory.
+     */
+    public static double measureDirectories(int nbItems) {
+        Directory dir = new Directory("directories");
+        long before = usedMemory();
+        for(int i = 0; i < nbItems; i++)
+            new Directory(dir, "dir" + i);
+        long after = usedMemory();
+        return bytesPerItem(dir, before, after, nbItems);
+    }
+
+    /**
+     * @return the average number of bytes taken by a new link in a directory.
+     */
+    public static double measureLinks(int nbItems) {
+        Directory dir = new Directory("links");
+        File target = new File(dir, "target", Type.TXT);
+        long before = usedMemory();
+        for(int i = 0; i < nbItems; i++)
+            new Link(dir, "link" + i, target);
+        long after = usedMemory();
+        return bytesPerItem(dir, before, after, nbItems);
+    }
+
+    /**
+     * @return the bytes per item, keeping the directory reachable until after the measurement.
+     */
+    private static double bytesPerItem(Directory dir, long before, long after, int nbItems) {
+        if(dir.getNbItems() < nbItems)
+            throw new IllegalStateException();
+        return (double) (after - before) / nbItems;
+    }
+
+    /**
+     * @return the number of bytes of heap in use after asking for a few garbage collections.
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++){
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
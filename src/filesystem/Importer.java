@@ -0,0 +1,319 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class of imports of a directory of the host filesystem into the model.
+ *
+ * The host directories are read in parallel, each subdirectory by a task of its own. Every
+ * directory is built apart from the tree with all its items, which are put in its content in one
+ * merge, and the imported tree is only placed in its directory at the end.
+ *
+ * Files get the type of their extension and keep their size and times. Symbolic links, other
+ * special files, files with an unknown extension and things whose name is not valid in the model
+ * are skipped, as well as things whose name is already taken in their directory, ignoring capital
+ * letters and extensions. A file larger than the largest size gets the largest size, but a tree
+ * whose total disk usage would not fit in the totals of the model is not imported at all.
+ *
+ * Usage: java filesystem.Importer path
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class Importer {
+
+    /**
+     * Variables counting the imported files and directories and the skipped things.
+     */
+    private final LongAdder nbFiles = new LongAdder();
+    private final LongAdder nbDirectories = new LongAdder();
+    private final LongAdder nbSkipped = new LongAdder();
+
+    /**
+     * Variable referencing the imported directory.
+     */
+    private Directory directory;
+
+    /**
+     * Variable registering how long the import took, in nanoseconds.
+     */
+    private long nanos;
+
+    /**
+     * Makes a new import, which has not been done yet.
+     */
+    @Model
+    private Importer(){
+    }
+
+    public static void main(String[] args) {
+        if(args.length != 1){
+            System.err.println("Usage: java filesystem.Importer path");
+            return;
+        }
+        Importer result = importTree(Paths.get(args[0]), null);
+        System.out.printf("Imported %d files and %d directories in %.1f ms (%.0f files/s), skipped %d%n",
+                result.getNbFiles(), result.getNbDirectories(), result.getNanos() / 1e6,
+                result.getFilesPerSecond(), result.getNbSkipped());
+    }
+
+    /**
+     * Imports the given host directory on the common fork-join pool.
+     * @effect | importTree(source, target, ForkJoinPool.commonPool())
+     */
+    public static Importer importTree(Path source, Directory target) throws IllegalArgumentException,
+            UncheckedIOException, FileNotWritableException, NameNotAvailableException {
+        return importTree(source, target, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Imports the given host directory and everything in it as a new directory of the given
+     * directory, reading the host directories on the given pool.
+     * @param source
+     *        the host directory to import.
+     * @param target
+     *        the directory that gets the imported directory, or null to import it as a root.
+     * @param pool
+     *        the pool whose workers read the host directories.
+     * @return the finished import, whose directory has the name of the source.
+     *         | result.getDirectory().getDirectory() == target
+     * @throws IllegalArgumentException
+     *         if the source or pool is not effective, the source is no directory or its name
+     *         is no valid directory name, the target is terminated, or the total disk usage of
+     *         the imported directory, or of the root of the target with the imported directory
+     *         in it, would be larger than the largest file size.
+     * @throws UncheckedIOException
+     *         if the source can not be read.
+     * @throws FileNotWritableException
+     *         if the target is not writable.
+     *         | target != null && !target.isWritable()
+     * @throws NameNotAvailableException
+     *         if the target has an item with the name of the source.
+     *         | target != null && target.containsDiskItemWithName(source.getFileName().toString())
+     */
+    public static Importer importTree(Path source, Directory target, ForkJoinPool pool) throws IllegalArgumentException,
+            UncheckedIOException, FileNotWritableException, NameNotAvailableException {
+        if(source == null || pool == null)
+            throw new IllegalArgumentException();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Path fileName = source.toAbsolutePath().normalize().getFileName();
+        String name = (fileName == null) ? "root" : fileName.toString();
+        if(!attributes.isDirectory() || !Thing.hasValidCharacters(name, false))
+            throw new IllegalArgumentException();
+        Importer result = new Importer();
+        long start = System.nanoTime();
+        ImportTask task = result.new ImportTask(source, name, attributes);
+        Directory directory = pool.invoke(task);
+        if(directory == null)
+            throw new UncheckedIOException(new IOException("Can not read " + source));
+        if(task.diskUsage > File.getMaximumSize())
+            throw new IllegalArgumentException("The source is too large");
+        if(target != null)
+            place(directory, task.diskUsage, target);
+        result.directory = directory;
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Places the given imported directory, which has the given disk usage, in the given target.
+     */
+    @Model
+    private static void place(Directory directory, long diskUsage, Directory target) throws IllegalArgumentException,
+            FileNotWritableException, NameNotAvailableException {
+        Locking.lockWrite(target);
+        try {
+            if(target.isTerminated)
+                throw new IllegalArgumentException("The target is terminated");
+            if(!target.isWritable())
+                throw new FileNotWritableException(target);
+            if(target.containsDiskItemWithName(directory.getName()))
+                throw new NameNotAvailableException(directory.getName());
+            // The root has the largest total of all the directories the import is counted in.
+            if(diskUsage > File.getMaximumSize() - target.getRoot().getTotalDiskUsage())
+                throw new IllegalArgumentException("The target can not hold the source");
+            directory.setDirectory(target);
+            target.insertItem(directory);
+            target.setModificationTime();
+            Journal.logTree(directory);
+            Subscription.created(directory);
+            FileIndex.placed(directory, null);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(target);
+        }
+    }
+
+    /**
+     * @return the imported directory.
+     */
+    @Basic
+    public Directory getDirectory(){
+        return directory;
+    }
+
+    /**
+     * @return the number of imported files.
+     */
+    public long getNbFiles(){
+        return nbFiles.sum();
+    }
+
+    /**
+     * @return the number of imported directories, including the imported directory itself.
+     */
+    public long getNbDirectories(){
+        return nbDirectories.sum();
+    }
+
+    /**
+     * @return the number of host files and directories that were not imported.
+     */
+    public long getNbSkipped(){
+        return nbSkipped.sum();
+    }
+
+    /**
+     * @return how long the import took, in nanoseconds.
+     */
+    @Basic
+    public long getNanos(){
+        return nanos;
+    }
+
+    /**
+     * @return the number of imported files per second.
+     */
+    public double getFilesPerSecond(){
+        return (nanos == 0) ? 0 : getNbFiles() * 1e9 / nanos;
+    }
+
+    /**
+     * @return the modification time for the given attributes, or Thing.NOT_MODIFIED if the
+     *         thing was not modified after its creation.
+     */
+    @Model
+    private static long modificationMillis(BasicFileAttributes attributes){
+        long modification = attributes.lastModifiedTime().toMillis();
+        return (modification > attributes.creationTime().toMillis()) ? modification : Thing.NOT_MODIFIED;
+    }
+
+    /**
+     * A class of tasks building the directory of one host directory with everything in it.
+     */
+    private final class ImportTask extends RecursiveTask<Directory> {
+
+        private final Path path;
+        private final String name;
+        private final BasicFileAttributes attributes;
+
+        /**
+         * The total disk usage of the built directory, counted without overflowing.
+         */
+        private long diskUsage = 0;
+
+        ImportTask(Path path, String name, BasicFileAttributes attributes){
+            this.path = path;
+            this.name = name;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected Directory compute(){
+            Directory dir = new Directory(name, attributes.creationTime().toMillis());
+            List<Thing> items = new ArrayList<Thing>();
+            List<ImportTask> subtasks = new ArrayList<ImportTask>();
+            Set<String> keys = new HashSet<String>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for(Path child : stream){
+                    BasicFileAttributes childAttributes;
+                    try {
+                        childAttributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        nbSkipped.increment();
+                        continue;
+                    }
+                    String childName = child.getFileName().toString();
+                    if(childAttributes.isDirectory()){
+                        if(Thing.hasValidCharacters(childName, false) && keys.add(Thing.toNameKey(childName))){
+                            ImportTask subtask = new ImportTask(child, childName, childAttributes);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                            continue;
+                        }
+                    } else if(childAttributes.isRegularFile()){
+                        File file = importFile(childName, childAttributes, keys);
+                        if(file != null){
+                            items.add(file);
+                            continue;
+                        }
+                    }
+                    nbSkipped.increment();
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                nbSkipped.increment();
+                for(ImportTask subtask : subtasks)
+                    subtask.join();
+                return null;
+            }
+            nbFiles.add(items.size());
+            long usage = 0;
+            for(Thing item : items)
+                usage += item.getDiskUsage();
+            for(ImportTask subtask : subtasks){
+                Directory subdir = subtask.join();
+                if(subdir != null){
+                    items.add(subdir);
+                    usage += subtask.diskUsage;
+                }
+            }
+            diskUsage = usage;
+            for(Thing item : items)
+                item.setDirectory(dir);
+            dir.insertItems(items);
+            dir.setModificationMillis(modificationMillis(attributes));
+            nbDirectories.increment();
+            return dir;
+        }
+
+        /**
+         * @return a new file for the host file with the given name and attributes, or null if
+         *         it can not be imported.
+         */
+        private File importFile(String fileName, BasicFileAttributes fileAttributes, Set<String> keys){
+            int dot = fileName.lastIndexOf('.');
+            if(dot <= 0)
+                return null;
+            Type type = Type.ofExtension(fileName.substring(dot));
+            String name = fileName.substring(0, dot);
+            if(type == null || !Thing.hasValidCharacters(name, true) || !keys.add(Thing.toNameKey(name)))
+                return null;
+            int size = (int) Math.min(fileAttributes.size(), File.getMaximumSize());
+            File file = new File(name, size, type, fileAttributes.creationTime().toMillis());
+            file.setModificationMillis(modificationMillis(fileAttributes));
+            return file;
+        }
+    }
+}
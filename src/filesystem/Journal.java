@@ -0,0 +1,943 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A class of journals recording every change to the things of one tree in a file, so the tree can
+ * be rebuilt after a crash by reading its last image and replaying the changes made after it.
+ *
+ * The changes are recorded while they are made and written to the file in groups by a thread of
+ * the journal, so a change never waits for the disk. How often the written changes are forced to
+ * the disk depends on the sync policy; sync() waits until all changes made so far are on the disk.
+ * A checkpoint writes an image of the tree and empties the journal.
+ *
+ * The journal file starts with a header of 16 bytes: the magic number, the version of the format
+ * and the sequence number of the last change held by the image of the last checkpoint. Every
+ * record holds its length, a CRC-32 checksum, its sequence number, the kind of change, a time and
+ * the paths and values of the change. Records that were not written completely before a crash
+ * fail their checksum and end the journal.
+ *
+ * @note  Only changes to things in the tree of the journal are recorded. Things are found back by
+ *        their absolute path. Imports and batches are recorded as well.
+ * @note  At most one journal is open at a time.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class Journal implements AutoCloseable {
+
+    /**
+     * The policies deciding when written changes are forced to the disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Every written group of changes is forced to the disk.
+         */
+        EVERY_GROUP,
+        /**
+         * Written changes are forced to the disk at most once per interval.
+         */
+        INTERVAL,
+        /**
+         * Written changes are only forced to the disk by sync, checkpoints and closing.
+         */
+        NONE
+    }
+
+    /**
+     * The number every journal file starts with: "FSJL".
+     */
+    static final int MAGIC = 0x46534A4C;
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The size of the header of a journal file, in bytes.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * The kinds of changes.
+     */
+    static final byte CREATE_FILE = 1;
+    static final byte CREATE_DIRECTORY = 2;
+    static final byte CREATE_LINK = 3;
+    static final byte RESIZE = 4;
+    static final byte RENAME = 5;
+    static final byte MOVE = 6;
+    static final byte TERMINATE = 7;
+    static final byte DETACH = 8;
+    static final byte WRITABLE = 9;
+    static final byte BATCH = 10;
+
+    /**
+     * The number of bytes of changes that are not written yet above which changes wait for the writer.
+     */
+    private static final int MAX_PENDING = 8 << 20;
+
+    /**
+     * Variable referencing the open journal, or null.
+     */
+    private static volatile Journal active = null;
+
+    private final Directory root;
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final long intervalMillis;
+    private final Thread writer;
+
+    /**
+     * The buffer the changes are recorded in, and the buffer that is written to the file.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * The sequence numbers of the last recorded, written and forced change.
+     */
+    private long lastSequence;
+    private long writtenSequence;
+    private long durableSequence;
+
+    /**
+     * The place in the file where the next group is written.
+     */
+    private long writePosition;
+
+    /**
+     * The state of the writer.
+     */
+    private long lastForce = System.currentTimeMillis();
+    private boolean isWriting = false;
+    private boolean isForceRequested = false;
+    private boolean isClosed = false;
+    private IOException failure = null;
+
+    /**
+     * Opens the given journal file for the given tree, continuing after its last complete change.
+     */
+    @Model
+    private Journal(Path file, Directory root, SyncPolicy policy, long intervalMillis) throws IOException {
+        this.root = root;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() < HEADER_SIZE){
+            writeHeader(0);
+            writePosition = HEADER_SIZE;
+            lastSequence = 0;
+        } else {
+            Scan scan = new Scan(Channels.newInputStream(channel.position(0)), channel.size());
+            while(scan.next() != null)
+                ;
+            writePosition = scan.end;
+            lastSequence = Math.max(scan.base, scan.sequence);
+            channel.truncate(writePosition);
+        }
+        writtenSequence = durableSequence = lastSequence;
+        writer = new Thread(this::write, "filesystem-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens a journal recording the changes to the tree of the given directory in the given file.
+     * @param file
+     *        the journal file, which is made if it does not exist yet.
+     * @param root
+     *        the root of the tree whose changes are recorded.
+     * @param policy
+     *        when written changes are forced to the disk.
+     * @param intervalMillis
+     *        the least time between two forces with the policy INTERVAL, in milliseconds.
+     * @return the open journal.
+     * @throws IllegalArgumentException
+     *         if the file, root or policy is not effective, or the root is no root.
+     * @throws IllegalStateException
+     *         if another journal is open.
+     * @throws UncheckedIOException
+     *         if the file can not be opened.
+     */
+    public static synchronized Journal open(Path file, Directory root, SyncPolicy policy, long intervalMillis)
+            throws IllegalArgumentException, IllegalStateException, UncheckedIOException {
+        if(file == null || root == null || policy == null || root.getDirectory() != null)
+            throw new IllegalArgumentException();
+        if(active != null)
+            throw new IllegalStateException("Another journal is open");
+        try {
+            active = new Journal(file, root, policy, intervalMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return active;
+    }
+
+    /**
+     * @return the root of the tree whose changes are recorded.
+     */
+    @Basic
+    public Directory getRoot(){
+        return root;
+    }
+
+    /**
+     * @return the sequence number of the last recorded change.
+     */
+    public synchronized long getLastSequence(){
+        return lastSequence;
+    }
+
+    /**
+     * Waits until all the changes recorded so far are forced to the disk.
+     * @throws UncheckedIOException
+     *         if the journal could not be written.
+     */
+    public synchronized void sync() throws UncheckedIOException {
+        long target = lastSequence;
+        isForceRequested = true;
+        notifyAll();
+        while(durableSequence < target && failure == null)
+            waitForWriter();
+        checkFailure();
+    }
+
+    /**
+     * Writes an image of the tree to the given file and empties the journal. Nothing changes in
+     * the meantime.
+     * @param image
+     *        the file of the image, which is replaced.
+     * @throws UncheckedIOException
+     *         if the image or journal could not be written.
+     */
+    public void checkpoint(Path image) throws UncheckedIOException {
+        Locking.lockStructure();
+        try {
+            long sequence = getLastSequence();
+            Path temporary = image.resolveSibling(image.getFileName() + ".tmp");
+            TreeImage.write(root, temporary, sequence);
+            Files.move(temporary, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                while((pending.position() > 0 || isWriting) && failure == null)
+                    waitForWriter();
+                checkFailure();
+                // A crash before the new header is written leaves changes the image already holds,
+                // which are skipped by their sequence number.
+                channel.truncate(HEADER_SIZE);
+                writeHeader(sequence);
+                channel.force(true);
+                writePosition = HEADER_SIZE;
+                durableSequence = writtenSequence;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            Locking.unlockStructure();
+        }
+    }
+
+    /**
+     * Writes and forces all recorded changes, and closes this journal.
+     * @throws UncheckedIOException
+     *         if the journal could not be written.
+     */
+    @Override
+    public void close() throws UncheckedIOException {
+        // Changes that found this journal still active are not recorded once it is closed.
+        synchronized (Journal.class) {
+            synchronized (this) {
+                if(active == this)
+                    active = null;
+                isClosed = true;
+                notifyAll();
+            }
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        checkFailure();
+    }
+
+    /**********************************************************
+     * recovery
+     **********************************************************/
+
+    /**
+     * Reads the tree in the given image and makes the changes of the given journal that were made
+     * after the image was written.
+     * @param image
+     *        the file of the image of the last checkpoint.
+     * @param journal
+     *        the journal file, which may not exist.
+     * @return the root of the tree as it was after the last complete change of the journal.
+     * @throws UncheckedIOException
+     *         if the files can not be read, or a change can not be made on the tree of the image.
+     */
+    public static Directory recover(Path image, Path journal) throws UncheckedIOException {
+        Directory root = TreeImage.read(image);
+        long after = TreeImage.readSequence(image);
+        if(Files.exists(journal)){
+            try (InputStream in = Files.newInputStream(journal)) {
+                new Replay(root, after).run(new Scan(in, Files.size(journal)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * A class of readers of the complete records of a journal file.
+     */
+    private static final class Scan {
+
+        private final DataInputStream in;
+        private final long size;
+        private final CRC32 checksum = new CRC32();
+        long base;
+        long sequence;
+        long end = HEADER_SIZE;
+
+        /**
+         * Makes a new scan of the journal read from the given stream, which has the given number of bytes.
+         */
+        Scan(InputStream in, long size) throws IOException{
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            this.size = size;
+            if(this.in.readInt() != MAGIC || this.in.readInt() != VERSION)
+                throw new IOException("Not a journal");
+            base = this.in.readLong();
+        }
+
+        /**
+         * @return the next complete record without its length and checksum, or null at the end.
+         */
+        ByteBuffer next() throws IOException{
+            byte[] record;
+            try {
+                int length = in.readInt();
+                int expected = in.readInt();
+                // A length that was not written completely may be larger than the journal.
+                if(length < 17 || length > size - end - 8)
+                    return null;
+                record = new byte[length];
+                in.readFully(record);
+                checksum.reset();
+                checksum.update(record);
+                if((int) checksum.getValue() != expected)
+                    return null;
+            } catch (EOFException e) {
+                return null;
+            }
+            end += 8 + record.length;
+            ByteBuffer result = ByteBuffer.wrap(record);
+            sequence = result.getLong(0);
+            return result;
+        }
+    }
+
+    /**
+     * A class of replays of the changes of a journal on a tree.
+     */
+    private static final class Replay {
+
+        private final Directory root;
+        private final long after;
+
+        Replay(Directory root, long after){
+            this.root = root;
+            this.after = after;
+        }
+
+        void run(Scan scan) throws IOException{
+            for(ByteBuffer record = scan.next(); record != null; record = scan.next()){
+                long sequence = record.getLong();
+                byte kind = record.get();
+                long time = record.getLong();
+                if(sequence <= after)
+                    continue;
+                try {
+                    if(kind == BATCH){
+                        int count = record.getInt();
+                        List<ByteBuffer> changes = new ArrayList<ByteBuffer>();
+                        for(int i = 0; i < count; i++){
+                            ByteBuffer change = scan.next();
+                            if(change == null)
+                                return;
+                            changes.add(change);
+                        }
+                        replayBatch(changes, time);
+                    } else {
+                        replay(kind, time, record);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Change " + sequence + " can not be made", e);
+                }
+            }
+        }
+
+        private Thing find(String path){
+            Thing thing = root.resolve(path);
+            if(thing == null)
+                throw new IllegalStateException("Nothing at " + path);
+            return thing;
+        }
+
+        private Directory findDirectory(String path){
+            return (Directory) find(path);
+        }
+
+        private void replay(byte kind, long time, ByteBuffer record){
+            Thing thing = find(getString(record));
+            switch(kind){
+                case CREATE_FILE: {
+                    String name = getString(record);
+                    long modification = record.getLong();
+                    int size = record.getInt();
+                    boolean writable = record.get() != 0;
+                    File file = new File(name, size, Type.values()[record.get()], time);
+                    file.setWritable(writable);
+                    file.setModificationMillis(modification);
+                    file.enter((Directory) thing);
+                    break;
+                }
+                case CREATE_DIRECTORY: {
+                    String name = getString(record);
+                    long modification = record.getLong();
+                    Directory dir = new Directory(name, time);
+                    dir.setWritable(record.get() != 0);
+                    dir.setModificationMillis(modification);
+                    dir.enter((Directory) thing);
+                    break;
+                }
+                case CREATE_LINK: {
+                    String name = getString(record);
+                    long modification = record.getLong();
+                    String target = getString(record);
+                    Link link = new Link(name, time);
+                    if(target.isEmpty()){
+                        Directory deleted = new Directory("deleted");
+                        deleted.isTerminated = true;
+                        link.restoreReference(deleted, false);
+                    } else {
+                        link.restoreReference(find(target), true);
+                    }
+                    link.setModificationMillis(modification);
+                    link.enter((Directory) thing);
+                    break;
+                }
+                case RESIZE: {
+                    File file = (File) thing;
+                    int delta = record.getInt() - file.getSize();
+                    if(delta > 0)
+                        file.enlarge(delta);
+                    else if(delta < 0)
+                        file.shorten(-delta);
+                    file.setModificationMillis(time);
+                    break;
+                }
+                case RENAME:
+                    thing.changeName(getString(record));
+                    thing.setModificationMillis(time);
+                    break;
+                case MOVE: {
+                    Directory location = findDirectory(getString(record));
+                    if(thing instanceof Directory)
+                        ((Directory) thing).move(location);
+                    else if(thing instanceof File)
+                        ((File) thing).move(location);
+                    else
+                        ((Link) thing).move(location);
+                    location.setModificationMillis(time);
+                    break;
+                }
+                case TERMINATE:
+                    thing.terminate();
+                    break;
+                case DETACH:
+                    if(thing instanceof Directory){
+                        ((Directory) thing).makeRoot();
+                    } else {
+                        try {
+                            thing.getDirectory().removeItem(thing);
+                            thing.setDirectory(null);
+                        } finally {
+                            Snapshot.publish();
+                        }
+                    }
+                    break;
+                case WRITABLE:
+                    if(thing instanceof Directory)
+                        ((Directory) thing).setWritable(record.get() != 0);
+                    else
+                        ((File) thing).setWritable(record.get() != 0);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown change " + kind);
+            }
+        }
+
+        private void replayBatch(List<ByteBuffer> changes, long time){
+            Batch batch = new Batch();
+            Map<File, Long> modifications = new IdentityHashMap<File, Long>();
+            for(ByteBuffer change : changes){
+                change.getLong();
+                byte kind = change.get();
+                long creation = change.getLong();
+                Thing thing = find(getString(change));
+                switch(kind){
+                    case CREATE_FILE: {
+                        String name = getString(change);
+                        long modification = change.getLong();
+                        int size = change.getInt();
+                        boolean writable = change.get() != 0;
+                        File file = batch.createFile((Directory) thing, name, size, writable, Type.values()[change.get()], creation);
+                        modifications.put(file, modification);
+                        break;
+                    }
+                    case MOVE:
+                        batch.move(thing, findDirectory(getString(change)));
+                        break;
+                    case RENAME:
+                        batch.rename(thing, getString(change));
+                        break;
+                    case TERMINATE:
+                        batch.delete(thing);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown change " + kind + " in a batch");
+                }
+            }
+            batch.commit(time);
+            for(Map.Entry<File, Long> entry : modifications.entrySet())
+                entry.getKey().setModificationMillis(entry.getValue());
+        }
+
+        private static String getString(ByteBuffer record){
+            int length = record.getInt();
+            String result = new String(record.array(), record.position(), length, StandardCharsets.ISO_8859_1);
+            record.position(record.position() + length);
+            return result;
+        }
+    }
+
+    /**********************************************************
+     * recording
+     **********************************************************/
+
+    /**
+     * @return the open journal, or null.
+     */
+    @Model
+    static Journal current(){
+        return active;
+    }
+
+    /**
+     * @return the open journal if the given thing is in its tree, or null.
+     */
+    @Model
+    static Journal of(Thing thing){
+        Journal journal = active;
+        if(journal == null)
+            return null;
+        return journal.holds(thing) ? journal : null;
+    }
+
+    /**
+     * @return whether the given thing is in the tree of this journal.
+     */
+    @Model
+    boolean holds(Thing thing){
+        if(thing == root)
+            return true;
+        Directory dir = thing.getDirectory();
+        return dir != null && dir.getRoot() == root;
+    }
+
+    /**
+     * @return the absolute path of the given thing if its changes are recorded, or null.
+     */
+    static String pathOf(Thing thing){
+        return (of(thing) == null) ? null : thing.getAbsolutePath();
+    }
+
+    /**
+     * Records the creation of the given thing in its directory.
+     */
+    static void logCreate(Thing thing){
+        Journal journal = of(thing);
+        if(journal != null)
+            journal.recordCreate(thing);
+    }
+
+    /**
+     * Records the creation of the given directory and everything in it.
+     */
+    static void logTree(Directory dir){
+        Journal journal = of(dir);
+        if(journal == null)
+            return;
+        synchronized (journal) {
+            List<Directory> todo = new ArrayList<Directory>();
+            journal.recordCreate(dir);
+            todo.add(dir);
+            for(int i = 0; i < todo.size(); i++){
+                for(Thing item : todo.get(i).getContent()){
+                    journal.recordCreate(item);
+                    if(item instanceof Directory)
+                        todo.add((Directory) item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the new size of the given file.
+     */
+    static void logResize(File file){
+        Journal journal = of(file);
+        if(journal != null)
+            journal.record(RESIZE, file.getModificationMillis(), file.getAbsolutePath(), null, file.getSize(), (byte) 0);
+    }
+
+    /**
+     * Records the new name of the given thing, which had the given path before.
+     * @param from
+     *        the path given by pathOf before the change.
+     */
+    static void logRename(Thing thing, String from){
+        if(from == null)
+            return;
+        Journal journal = of(thing);
+        if(journal != null)
+            journal.record(RENAME, thing.getModificationMillis(), from, thing.getName(), 0, (byte) 0);
+    }
+
+    /**
+     * Records the move of the given thing, which had the given path before.
+     * @param from
+     *        the path given by pathOf before the move.
+     */
+    static void logMove(Thing thing, String from){
+        Journal journal = active;
+        if(journal == null)
+            return;
+        boolean holds = journal.holds(thing);
+        if(from != null && holds)
+            journal.record(MOVE, thing.getDirectory().getModificationMillis(), from,
+                    thing.getDirectory().getAbsolutePath(), 0, (byte) 0);
+        else if(from != null)
+            journal.record(DETACH, System.currentTimeMillis(), from, null, 0, (byte) 0);
+        else if(holds && thing instanceof Directory)
+            logTree((Directory) thing);
+        else if(holds)
+            logCreate(thing);
+    }
+
+    /**
+     * Records the termination of the given thing, before it is removed.
+     */
+    static void logTerminate(Thing thing){
+        Journal journal = of(thing);
+        if(journal != null && thing != journal.root)
+            journal.record(TERMINATE, System.currentTimeMillis(), thing.getAbsolutePath(), null, 0, (byte) 0);
+    }
+
+    /**
+     * Records that the given directory becomes a root, before it is removed.
+     */
+    static void logDetach(Directory dir){
+        Journal journal = of(dir);
+        if(journal != null && dir != journal.root)
+            journal.record(DETACH, System.currentTimeMillis(), dir.getAbsolutePath(), null, 0, (byte) 0);
+    }
+
+    /**
+     * Records the new writability of the given thing.
+     */
+    static void logWritable(Thing thing, boolean writable){
+        Journal journal = of(thing);
+        if(journal != null)
+            journal.record(WRITABLE, System.currentTimeMillis(), thing.getAbsolutePath(), null, 0, (byte) (writable ? 1 : 0));
+    }
+
+    /**
+     * Records the start of a batch of the given number of changes, committed at the given time,
+     * which have to be recorded right after it while holding the lock of this journal.
+     */
+    synchronized void recordBatch(int count, long millis){
+        int start = begin(BATCH, millis);
+        if(start < 0)
+            return;
+        ensure(4);
+        pending.putInt(count);
+        end(start);
+    }
+
+    /**
+     * Records the creation of the given file in the given directory, which is where a file of a
+     * batch goes before it is placed.
+     */
+    synchronized void recordCreate(File file, Directory dir){
+        int start = begin(CREATE_FILE, file.getCreationMillis());
+        if(start < 0)
+            return;
+        putString(dir.getAbsolutePath());
+        putString(file.getName());
+        ensure(14);
+        pending.putLong(file.getModificationMillis()).putInt(file.getSize())
+                .put((byte) (file.isWritable() ? 1 : 0)).put((byte) file.getFileType().ordinal());
+        end(start);
+    }
+
+    /**
+     * Records the creation of the given thing in its directory.
+     */
+    synchronized void recordCreate(Thing thing){
+        Directory dir = thing.getDirectory();
+        if(thing instanceof File){
+            recordCreate((File) thing, dir);
+            return;
+        }
+        int start = begin((thing instanceof Directory) ? CREATE_DIRECTORY : CREATE_LINK, thing.getCreationMillis());
+        if(start < 0)
+            return;
+        putString(dir.getAbsolutePath());
+        putString(thing.getName());
+        ensure(9);
+        pending.putLong(thing.getModificationMillis());
+        if(thing instanceof Directory){
+            pending.put((byte) (((Directory) thing).isWritable() ? 1 : 0));
+        } else {
+            Thing reference = ((Link) thing).getReference();
+            putString(reference.isTerminated || !holds(reference) ? "" : reference.getAbsolutePath());
+        }
+        end(start);
+    }
+
+    /**
+     * Records a change with the given kind, time, path and values.
+     * @param second
+     *        a second path or name, or null.
+     */
+    synchronized void record(byte kind, long time, String path, String second, int number, byte flag){
+        int start = begin(kind, time);
+        if(start < 0)
+            return;
+        putString(path);
+        if(second != null)
+            putString(second);
+        ensure(5);
+        if(kind == RESIZE)
+            pending.putInt(number);
+        if(kind == WRITABLE)
+            pending.put(flag);
+        end(start);
+    }
+
+    /**
+     * Starts a new record in the pending buffer. The change is made already, so nothing is thrown:
+     * a closed or failed journal records nothing, and a failure is reported by sync, checkpoint
+     * and close.
+     * @return the place of the record in the buffer, or -1 if nothing is recorded.
+     */
+    @Model
+    private int begin(byte kind, long time){
+        if(isClosed || failure != null)
+            return -1;
+        boolean interrupted = false;
+        while(pending.position() > MAX_PENDING && failure == null && !interrupted){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The buffer grows instead.
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure != null)
+            return -1;
+        ensure(25);
+        int start = pending.position();
+        pending.putInt(0).putInt(0).putLong(++lastSequence).put(kind).putLong(time);
+        return start;
+    }
+
+    /**
+     * Finishes the record at the given place in the pending buffer.
+     */
+    @Model
+    private void end(int start){
+        int length = pending.position() - start - 8;
+        checksum.reset();
+        checksum.update(pending.array(), start + 8, length);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int) checksum.getValue());
+        if(start == 0)
+            notifyAll();
+    }
+
+    @Model
+    private void putString(String string){
+        ensure(4 + string.length());
+        pending.putInt(string.length());
+        for(int i = 0; i < string.length(); i++)
+            pending.put((byte) string.charAt(i));
+    }
+
+    /**
+     * Makes sure the pending buffer has room for the given number of bytes.
+     */
+    @Model
+    private void ensure(int bytes){
+        if(pending.remaining() >= bytes)
+            return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+    }
+
+    /**********************************************************
+     * writing
+     **********************************************************/
+
+    /**
+     * Writes the recorded changes in groups until this journal is closed.
+     */
+    @Model
+    private void write(){
+        try {
+            while(true){
+                ByteBuffer group;
+                long sequence;
+                long position;
+                boolean force;
+                synchronized (this) {
+                    while(!isClosed && pending.position() == 0 && !isForceDue())
+                        waitForGroup();
+                    if(isClosed && pending.position() == 0 && durableSequence == writtenSequence)
+                        return;
+                    group = pending;
+                    pending = spare;
+                    spare = group;
+                    sequence = lastSequence;
+                    position = writePosition;
+                    writePosition += group.position();
+                    force = isClosed || isForceRequested || policy == SyncPolicy.EVERY_GROUP
+                            || (policy == SyncPolicy.INTERVAL && System.currentTimeMillis() - lastForce >= intervalMillis);
+                    isForceRequested = false;
+                    isWriting = true;
+                }
+                group.flip();
+                while(group.hasRemaining())
+                    position += channel.write(group, position);
+                group.clear();
+                if(force){
+                    channel.force(false);
+                    lastForce = System.currentTimeMillis();
+                }
+                synchronized (this) {
+                    isWriting = false;
+                    writtenSequence = sequence;
+                    if(force)
+                        durableSequence = sequence;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                isWriting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return whether written changes have to be forced now.
+     */
+    @Model
+    private boolean isForceDue(){
+        if(durableSequence == writtenSequence)
+            return false;
+        return isForceRequested ||
+                (policy == SyncPolicy.INTERVAL && System.currentTimeMillis() - lastForce >= intervalMillis);
+    }
+
+    /**
+     * Waits for the next change, or for the next force with the policy INTERVAL.
+     */
+    @Model
+    private void waitForGroup(){
+        long timeout = 0;
+        if(policy == SyncPolicy.INTERVAL && durableSequence != writtenSequence)
+            timeout = Math.max(1, intervalMillis - (System.currentTimeMillis() - lastForce));
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the writer has written a group.
+     */
+    @Model
+    private void waitForWriter(){
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        }
+    }
+
+    @Model
+    private void checkFailure() throws UncheckedIOException {
+        if(failure != null)
+            throw new UncheckedIOException(failure);
+    }
+
+    /**
+     * Writes the header of the journal file with the given sequence number of the last checkpoint.
+     */
+    @Model
+    private void writeHeader(long base) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base);
+        header.flip();
+        while(header.hasRemaining())
+            channel.write(header, header.position());
+    }
+}
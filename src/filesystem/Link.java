@@ -1,6 +1,7 @@
 package filesystem;
 import be.kuleuven.cs.som.annotate.Basic;
 import be.kuleuven.cs.som.annotate.Immutable;
+import be.kuleuven.cs.som.annotate.Model;
 import be.kuleuven.cs.som.annotate.Raw;
 
 /**
@@ -20,8 +21,9 @@ public class Link extends Thing {
 
     /**
      * A variabele representing the state of the referenced item, if its terminated the state is false.
+     * It is set to false by the referenced item when that is terminated.
      */
-    private boolean State = true;
+    private volatile boolean State = true;
     /**
      * A variable representing the item the link is referencing.
      */
@@ -33,8 +35,6 @@ public class Link extends Thing {
      */
     @Basic
     public boolean getState() {
-        if(getReference().isTerminated)
-            setState(false);
         return this.State;
     }
 
@@ -47,6 +47,16 @@ public class Link extends Thing {
         return this.reference;
     }
 
+    /**
+     * @return the absolute path of the object that the link references, or null if it is terminated.
+     * @note   The path is the cached path of the referenced object, so it is only computed again
+     *         after a directory above that object was renamed or moved.
+     */
+    public String getReferencePath() {
+        Thing target = getReference();
+        return getState() ? target.getAbsolutePath() : null;
+    }
+
     /**
      * sets the state of the link. True means the referenced object is still effective. False means it has been terminated.
      * @param state
@@ -64,6 +74,8 @@ public class Link extends Thing {
      *         if the argument is a link.
      * @throws ReferenceDeletedException
      *         if the reference has been terminated and thus not effective
+     * @effect the link is registered with the item it references
+     *         | reference.addLink(this)
      */
 
     private final void setReference(Thing reference) throws IllegalArgumentException, ReferenceDeletedException {
@@ -71,7 +83,7 @@ public class Link extends Thing {
             throw new IllegalArgumentException();
         }
         else {
-            if(reference.isTerminated)
+            if(!reference.addLink(this))
                 throw new ReferenceDeletedException();
             this.reference = reference;
         }
@@ -85,19 +97,67 @@ public class Link extends Thing {
      *        The name of the link.
      * @param linkedItem
      *        The item the link points to.
-     * @effect The link is initialized as a new filesystem.Thing with the given
-     *         directory.
-     *         | super(dir)
      * @effect The given name is set as the name of the link.
      *         | setName(name)
      * @effect The given reference is set as the reference of the link.
      *         | setReference(name)
+     * @effect The link is placed in the given directory.
+     *         | enter(dir)
      */
     @Raw
     public Link(Directory dir, String name, Thing linkedItem){
-        super(dir);
+        super();
         setName(name);
         setReference(linkedItem);
+        try {
+            enter(dir);
+        } catch (RuntimeException e) {
+            linkedItem.removeLink(this);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a link without a directory that was created at the given time, whose reference
+     * is set with restoreReference.
+     * @param name
+     *        The name of the link.
+     * @param creationMillis
+     *        The time of creation, in milliseconds since the epoch.
+     * @effect | super(creationMillis)
+     * @effect | setName(name)
+     */
+    @Raw
+    Link(String name, long creationMillis){
+        super(creationMillis);
+        setName(name);
+    }
+
+    /**
+     * Sets the reference and state of a link that is read back from a stored tree.
+     * @param reference
+     *        The item the link references.
+     * @param state
+     *        Whether the referenced item is still effective.
+     * @post  | getReference() == reference
+     * @post  | getState() == (state && !reference.isTerminated)
+     */
+    @Raw
+    void restoreReference(Thing reference, boolean state){
+        this.reference = reference;
+        this.State = state && reference.addLink(this);
+    }
+
+    /**
+     * Marks this link as terminated and forgets it in the item it references.
+     * @effect | super.setTerminated()
+     * @effect | getReference().removeLink(this)
+     */
+    @Override @Model
+    void setTerminated(){
+        super.setTerminated();
+        if(getReference() != null)
+            getReference().removeLink(this);
     }
 
     /**
@@ -112,8 +172,6 @@ public class Link extends Thing {
      *         |this.remove();
      * @effect the link is added to the list of content of the designated location
      *         |location.add(this)
-     * @effect after the thing is added, the map is sorted by name
-     *        |sortMap();
      * @effect the modification time of the location is changed to the current time
      *        |setModificationTime();
      *
@@ -129,21 +187,28 @@ public class Link extends Thing {
      */
     @Raw
     public void move(Directory location) throws FileNotWritableException,IllegalArgumentException, NameNotAvailableException {
-        if(!getDirectory().isWriteable())
-            throw new FileNotWritableException(getDirectory());
-        if(!location.isWriteable())
-            throw new FileNotWritableException(location);
-        if(!isValidLocation(location))
-            throw new IllegalArgumentException();
-        if(!nameNotInMap(location))
-            throw new NameNotAvailableException(getName());
-
-        Directory olddir = getDirectory();
-        setDirectory(location);
-        location.add(this);
-        location.sortMap();
-        remove(olddir);
-        location.setModificationTime();
+        Directory olddir = lockDirectory(location);
+        try {
+            if(!olddir.isWriteable())
+                throw new FileNotWritableException(olddir);
+            if(!location.isWriteable())
+                throw new FileNotWritableException(location);
+            if(!isValidLocation(location))
+                throw new IllegalArgumentException();
+            if(!nameNotInMap(location))
+                throw new NameNotAvailableException(getName());
+
+            String from = Journal.pathOf(this);
+            setDirectory(location);
+            location.add(this);
+            remove(olddir);
+            location.setModificationTime();
+            Journal.logMove(this, from);
+            Subscription.moved(this, olddir);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(olddir, location);
+        }
     }
 
 
@@ -0,0 +1,340 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A class of sweepers finding the links whose reference is terminated, and reporting or
+ * terminating them.
+ *
+ * A started sweeper is told about every link that dies: when a thing is terminated, the links
+ * referencing it are handed to the sweeper, so finding them never needs a walk through the tree.
+ * Links that were already dead before the sweeper started, such as links read from an image, are
+ * found by scanning a tree. The sweeper does its work in slices of a given length on a thread of
+ * its own, so the threads using the filesystem never wait for it longer than a single link or a
+ * chunk of the items of one directory.
+ *
+ * @note  At most one sweeper is started at a time.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class LinkSweeper implements AutoCloseable {
+
+    /**
+     * Variable referencing the started sweeper, or null.
+     */
+    private static volatile LinkSweeper active = null;
+
+    /**
+     * Variable stating whether the dead links found are terminated.
+     */
+    private final boolean isRemoving;
+
+    /**
+     * Variable referencing the action told about every dead link found, or null.
+     */
+    private final Consumer<Link> listener;
+
+    /**
+     * The links that died and still have to be handled.
+     */
+    private final ConcurrentLinkedQueue<Link> dead = new ConcurrentLinkedQueue<Link>();
+
+    /**
+     * The number of items read from a directory while holding its lock.
+     */
+    private static final int CHUNK = 256;
+
+    /**
+     * The directories that still have to be scanned, the directory being scanned and the place of
+     * the next item to read from it, and the items read that were not looked at yet. Guarded by
+     * this sweeper.
+     */
+    private final ArrayDeque<Directory> toScan = new ArrayDeque<Directory>();
+    private Directory scanned = null;
+    private int scannedNext = 0;
+    private final ArrayDeque<Thing> scanning = new ArrayDeque<Thing>();
+
+    /**
+     * The dead links found and not terminated, in the order they were found, the links handled
+     * so far, and the number of handled links at which the ones terminated in the meantime are
+     * dropped. A link can be handed over when it dies and be scanned later, but it is only
+     * handled once. Guarded by this sweeper.
+     */
+    private final List<Link> found = new ArrayList<Link>();
+    private final Set<Link> handled = Collections.newSetFromMap(new IdentityHashMap<Link, Boolean>());
+    private int pruneAt = 16;
+
+    /**
+     * Variables counting the dead links found and terminated.
+     */
+    private final LongAdder nbFound = new LongAdder();
+    private final LongAdder nbRemoved = new LongAdder();
+
+    /**
+     * The thread doing the slices, and the time between and length of the slices.
+     */
+    private Thread thread = null;
+    private long periodMillis;
+    private long sliceNanos;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Makes a new sweeper that is not started.
+     * @param removing
+     *        whether the dead links found are terminated.
+     * @param listener
+     *        the action told about every dead link found, possibly null.
+     * @post  | isRemoving() == removing
+     */
+    public LinkSweeper(boolean removing, Consumer<Link> listener){
+        this.isRemoving = removing;
+        this.listener = listener;
+    }
+
+    /**
+     * @return whether the dead links found are terminated.
+     */
+    @Basic
+    public boolean isRemoving(){
+        return isRemoving;
+    }
+
+    /**
+     * Starts this sweeper: from now on it is told about every link that dies, and it does a slice
+     * of its work of at most the given length at the given interval.
+     * @param periodMillis
+     *        the time between two slices, in milliseconds.
+     * @param sliceMillis
+     *        the longest time a slice takes, in milliseconds.
+     * @throws IllegalArgumentException
+     *         if the period or slice is not positive.
+     * @throws IllegalStateException
+     *         if this or another sweeper was started already.
+     */
+    public void start(long periodMillis, long sliceMillis) throws IllegalArgumentException, IllegalStateException {
+        if(periodMillis <= 0 || sliceMillis <= 0)
+            throw new IllegalArgumentException();
+        synchronized (LinkSweeper.class) {
+            if(active != null || thread != null)
+                throw new IllegalStateException("A sweeper is started");
+            active = this;
+        }
+        this.periodMillis = periodMillis;
+        this.sliceNanos = sliceMillis * 1_000_000;
+        thread = new Thread(this::run, "filesystem-link-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops this sweeper, after the slice it is doing.
+     */
+    @Override
+    public void close(){
+        synchronized (LinkSweeper.class) {
+            if(active == this)
+                active = null;
+        }
+        isClosed = true;
+        if(thread != null){
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adds the given directory and everything in it to the things this sweeper looks at, to find
+     * the links that were dead before this sweeper was told about them.
+     * @throws IllegalArgumentException
+     *         if the directory is not effective.
+     */
+    public synchronized void scan(Directory dir) throws IllegalArgumentException {
+        if(dir == null)
+            throw new IllegalArgumentException();
+        toScan.add(dir);
+    }
+
+    /**
+     * Hands the given links, whose reference was just terminated, to the started sweeper.
+     */
+    @Model
+    static void died(Collection<Link> links){
+        LinkSweeper sweeper = active;
+        if(sweeper != null)
+            sweeper.dead.addAll(links);
+    }
+
+    /**
+     * Does the work of this sweeper for at most about the given time. The dead links found are
+     * reported and terminated after the lock of this sweeper is released, so scan and getDeadLinks
+     * never wait for the locks of the filesystem.
+     * @param budgetNanos
+     *        the time the slice may take, in nanoseconds.
+     * @return whether work is left.
+     */
+    public boolean sweep(long budgetNanos){
+        List<Link> taken = new ArrayList<Link>();
+        boolean isLeft;
+        synchronized (this) {
+            if(handled.size() >= pruneAt)
+                prune();
+            isLeft = collect(System.nanoTime() + budgetNanos, taken);
+        }
+        for(Link link : taken)
+            handle(link);
+        return isLeft;
+    }
+
+    /**
+     * Adds the dead links found until the given time to the given list, while holding the lock of
+     * this sweeper.
+     * @return whether work is left.
+     */
+    @Model
+    private boolean collect(long end, List<Link> taken){
+        do {
+            Link link = dead.poll();
+            if(link != null){
+                take(link, taken);
+                continue;
+            }
+            Thing item = scanning.poll();
+            if(item instanceof Link){
+                if(!((Link) item).getState())
+                    take((Link) item, taken);
+            } else if(item instanceof Directory){
+                toScan.add((Directory) item);
+            } else if(item == null){
+                if(scanned == null){
+                    scanned = toScan.poll();
+                    scannedNext = 0;
+                    if(scanned == null)
+                        return false;
+                }
+                readChunk();
+            }
+        } while(System.nanoTime() < end);
+        return !dead.isEmpty() || !scanning.isEmpty() || scanned != null || !toScan.isEmpty();
+    }
+
+    /**
+     * Puts the next items of the directory being scanned in the queue of things to look at. The
+     * directory is only locked while a chunk of its items is read, so a wide directory does not
+     * keep its writers waiting; items added or removed between two chunks may be missed or seen
+     * twice.
+     */
+    @Model
+    private void readChunk(){
+        Directory dir = scanned;
+        Locking.lockRead(dir);
+        try {
+            List<Thing> content = dir.getContent();
+            int end = Math.min(content.size(), scannedNext + CHUNK);
+            for(int i = scannedNext; i < end; i++)
+                scanning.add(content.get(i));
+            scannedNext = end;
+            if(end == content.size())
+                scanned = null;
+        } finally {
+            Locking.unlockRead(dir);
+        }
+    }
+
+    /**
+     * Drops the dead links found that were terminated in the meantime, while holding the lock of
+     * this sweeper.
+     */
+    @Model
+    private void prune(){
+        found.removeIf(link -> link.isTerminated);
+        handled.removeIf(link -> link.isTerminated);
+        pruneAt = Math.max(16, 2 * handled.size());
+    }
+
+    /**
+     * Adds the given dead link to the given list, unless it was terminated or handled already,
+     * while holding the lock of this sweeper.
+     */
+    @Model
+    private void take(Link link, List<Link> taken){
+        if(link.isTerminated || !handled.add(link))
+            return;
+        nbFound.increment();
+        taken.add(link);
+    }
+
+    /**
+     * Reports the given dead link and terminates it if this sweeper is removing, without holding
+     * the lock of this sweeper.
+     */
+    @Model
+    private void handle(Link link){
+        if(listener != null)
+            listener.accept(link);
+        if(isRemoving && !link.isTerminated){
+            try {
+                link.terminate();
+                nbRemoved.increment();
+                return;
+            } catch (FileNotWritableException e) {
+                // The link stays and is reported as found.
+            }
+        }
+        synchronized (this) {
+            found.add(link);
+        }
+    }
+
+    /**
+     * Does slices of work until this sweeper is closed.
+     */
+    @Model
+    private void run(){
+        while(!isClosed){
+            sweep(sliceNanos);
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the dead links this sweeper found and did not terminate, which are not terminated now.
+     */
+    public synchronized List<Link> getDeadLinks(){
+        prune();
+        return new ArrayList<Link>(found);
+    }
+
+    /**
+     * @return the number of dead links this sweeper found.
+     */
+    public long getNbFound(){
+        return nbFound.sum();
+    }
+
+    /**
+     * @return the number of dead links this sweeper terminated.
+     */
+    public long getNbRemoved(){
+        return nbRemoved.sum();
+    }
+}
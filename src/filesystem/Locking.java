@@ -0,0 +1,179 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A helper class with the locking protocol of the concurrent mode of the filesystem.
+ *
+ * In concurrent mode every directory has a read/write lock guarding its content and the names,
+ * sizes and places of its items. Next to those there is one structure lock: operations that only
+ * change the content of directories hold it in read mode, so they run in parallel in unrelated
+ * directories, while operations that change the place or name of a directory with everything in
+ * it (moving, renaming or making a root of a directory) hold it in write mode. The directories
+ * above a thing can therefore only change while nothing else happens.
+ *
+ * When two directories are locked, their locks are taken in the order of their lock ids, so two
+ * operations can never wait for each other. When the mode is off, no locks are taken at all.
+ *
+ * @note  The mode may only be changed while no other thread uses any thing.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+final class Locking {
+
+    /**
+     * This class only has static methods.
+     */
+    private Locking() {
+    }
+
+    /**
+     * Variable stating whether the filesystem is in concurrent mode.
+     */
+    private static volatile boolean concurrent = false;
+
+    /**
+     * The lock guarding the places and names of all directories.
+     */
+    private static final ReentrantReadWriteLock STRUCTURE = new ReentrantReadWriteLock();
+
+    /**
+     * The source of the ids of the directory locks.
+     */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * A read/write lock of a directory, with an id fixing the order in which locks are taken.
+     */
+    static final class DirectoryLock extends ReentrantReadWriteLock {
+
+        private final long id = NEXT_ID.getAndIncrement();
+
+        @Basic
+        long getId() {
+            return id;
+        }
+    }
+
+    /**
+     * @return whether the filesystem is in concurrent mode.
+     */
+    @Basic
+    static boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Turns the concurrent mode on or off.
+     * @post | isConcurrent() == concurrent
+     */
+    static void setConcurrent(boolean concurrent) {
+        Locking.concurrent = concurrent;
+    }
+
+    /**
+     * Locks the content of the given directory for reading.
+     * @param dir
+     *        the directory to lock, or null to only lock the structure.
+     */
+    static void lockRead(Directory dir) {
+        if (!concurrent)
+            return;
+        STRUCTURE.readLock().lock();
+        if (dir != null)
+            dir.getLock().readLock().lock();
+    }
+
+    /**
+     * Releases the locks taken by lockRead.
+     */
+    static void unlockRead(Directory dir) {
+        if (!concurrent)
+            return;
+        if (dir != null)
+            dir.getLock().readLock().unlock();
+        STRUCTURE.readLock().unlock();
+    }
+
+    /**
+     * Locks the content of the given directory for writing.
+     * @param dir
+     *        the directory to lock, or null to only lock the structure.
+     */
+    static void lockWrite(Directory dir) {
+        lockWrite(dir, null);
+    }
+
+    /**
+     * Releases the locks taken by lockWrite.
+     */
+    static void unlockWrite(Directory dir) {
+        unlockWrite(dir, null);
+    }
+
+    /**
+     * Locks the content of both given directories for writing, in the order of their lock ids.
+     * @param dir1
+     *        a directory to lock, or null.
+     * @param dir2
+     *        another directory to lock, or null.
+     */
+    static void lockWrite(Directory dir1, Directory dir2) {
+        if (!concurrent)
+            return;
+        STRUCTURE.readLock().lock();
+        Directory first = first(dir1, dir2);
+        Directory second = (first == dir1) ? dir2 : dir1;
+        if (first != null)
+            first.getLock().writeLock().lock();
+        if (second != null && second != first)
+            second.getLock().writeLock().lock();
+    }
+
+    /**
+     * Releases the locks taken by lockWrite.
+     */
+    static void unlockWrite(Directory dir1, Directory dir2) {
+        if (!concurrent)
+            return;
+        Directory first = first(dir1, dir2);
+        Directory second = (first == dir1) ? dir2 : dir1;
+        if (second != null && second != first)
+            second.getLock().writeLock().unlock();
+        if (first != null)
+            first.getLock().writeLock().unlock();
+        STRUCTURE.readLock().unlock();
+    }
+
+    /**
+     * Locks the structure for writing, so no other operation runs at the same time.
+     */
+    static void lockStructure() {
+        if (concurrent)
+            STRUCTURE.writeLock().lock();
+    }
+
+    /**
+     * Releases the lock taken by lockStructure.
+     */
+    static void unlockStructure() {
+        if (concurrent)
+            STRUCTURE.writeLock().unlock();
+    }
+
+    /**
+     * @return the directory whose lock has to be taken first, which may be null.
+     */
+    @Model
+    private static Directory first(Directory dir1, Directory dir2) {
+        if (dir1 == null)
+            return dir2;
+        if (dir2 == null)
+            return dir1;
+        return (dir1.getLock().getId() <= dir2.getLock().getId()) ? dir1 : dir2;
+    }
+}
@@ -0,0 +1,230 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A helper class resolving paths, as they are given by getAbsolutePath, to the things they name.
+ *
+ * A path is a list of names divided by forward slashes. A path starting with a slash is absolute
+ * and starts with the name of the root directory, any other path is relative to a directory.
+ * The name "." stands for the directory itself and ".." for the directory one level up.
+ * Names are compared ignoring the difference between lower- and uppercase letters, and the name
+ * of a file is followed by the extension of its type.
+ *
+ * @note  Each name is looked up by a binary search over the sorted content of a directory,
+ *        comparing the keys of the items with the characters of the path, so no strings are
+ *        made while walking.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+final class PathResolver {
+
+    /**
+     * This class only has static methods.
+     */
+    private PathResolver() {
+    }
+
+    /**
+     * Resolves the given path starting from the given directory.
+     *
+     * @param  base
+     *         the directory relative paths start from.
+     * @param  path
+     *         the path to resolve.
+     * @return the thing with the given path, or null if there is no such thing.
+     */
+    static Thing resolve(Directory base, String path) {
+        return walk(base, path, 0, start(base, path), null);
+    }
+
+    /**
+     * Resolves all the given paths starting from the given directory. The paths are resolved in
+     * sorted order, so a path starts walking from the deepest directory it shares with the path
+     * resolved before it.
+     *
+     * @param  base
+     *         the directory relative paths start from.
+     * @param  paths
+     *         the paths to resolve.
+     * @return for each path, the thing with that path, or null if there is no such thing.
+     */
+    static Thing[] resolveAll(Directory base, String[] paths) {
+        Integer[] order = new Integer[paths.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> paths[i]));
+
+        Thing[] result = new Thing[paths.length];
+        Trail trail = new Trail();
+        String previous = null;
+        for (int index : order) {
+            String path = paths[index];
+            int common = (previous == null) ? 0 : commonPrefix(previous, path);
+            trail.keepBefore(common);
+            if (trail.isEmpty())
+                result[index] = walk(base, path, 0, start(base, path), trail);
+            else
+                result[index] = walk(base, path, trail.lastEnd() + 1, trail.lastThing(), trail);
+            previous = path;
+        }
+        return result;
+    }
+
+    /**
+     * @return the thing a walk over the given path starts from: the given directory for a relative
+     *         path, or null for an absolute path, which starts above the root.
+     */
+    @Model
+    private static Thing start(Directory base, String path) {
+        return (!path.isEmpty() && path.charAt(0) == '/') ? null : base;
+    }
+
+    /**
+     * Walks over the names of the given path, starting at the given position.
+     *
+     * @param  base
+     *         the directory relative paths start from.
+     * @param  path
+     *         the path to resolve.
+     * @param  from
+     *         the position of the first name to resolve.
+     * @param  at
+     *         the thing reached before the first name, or null if the walk is above the root.
+     * @param  trail
+     *         if effective, every directory reached before a slash is registered in it.
+     * @return the thing reached after the last name, or null if a name could not be found
+     *         or the path names no thing at all.
+     */
+    @Model
+    private static Thing walk(Directory base, String path, int from, Thing at, Trail trail) {
+        int length = path.length();
+        int begin = from;
+        while (begin <= length) {
+            int end = path.indexOf('/', begin);
+            if (end < 0)
+                end = length;
+            if (end > begin) {
+                if (at == null)
+                    at = matchesKey(base.getRoot().getNameKey(), path, begin, end) ? base.getRoot() : null;
+                else
+                    at = step(at, path, begin, end);
+                if (at == null)
+                    return null;
+                if (trail != null && end < length)
+                    trail.add(end, at);
+            }
+            begin = end + 1;
+        }
+        return at;
+    }
+
+    /**
+     * @return the thing the name between the given positions of the path stands for, seen from
+     *         the given thing, or null if there is no such thing.
+     */
+    @Model
+    private static Thing step(Thing at, String path, int begin, int end) {
+        int length = end - begin;
+        if (length == 1 && path.charAt(begin) == '.')
+            return at;
+        if (length == 2 && path.charAt(begin) == '.' && path.charAt(begin + 1) == '.')
+            return at.getDirectory();
+        if (!(at instanceof Directory))
+            return null;
+        Directory dir = (Directory) at;
+        for (Type type : Type.values()) {
+            String extension = type.getExtension();
+            if (length > extension.length() && path.regionMatches(end - extension.length(), extension, 0, extension.length())) {
+                Thing file = dir.findItem(path, begin, end - extension.length(), type);
+                if (file != null)
+                    return file;
+            }
+        }
+        return dir.findItem(path, begin, end, null);
+    }
+
+    /**
+     * @return whether the given key equals the characters between the given positions of the path,
+     *         ignoring the difference between lower- and uppercase letters.
+     */
+    @Model
+    static boolean matchesKey(String key, CharSequence path, int begin, int end) {
+        return compareKey(key, path, begin, end) == 0;
+    }
+
+    /**
+     * Compares the given key with the characters between the given positions of the path in
+     * lowercase letters, in the order in which a directory keeps its items.
+     *
+     * @return a negative number, zero or a positive number if the key comes before, is equal to
+     *         or comes after the characters of the path.
+     */
+    @Model
+    static int compareKey(String key, CharSequence path, int begin, int end) {
+        int length = Math.min(key.length(), end - begin);
+        for (int i = 0; i < length; i++) {
+            char c1 = key.charAt(i);
+            char c2 = Character.toLowerCase(path.charAt(begin + i));
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return key.length() - (end - begin);
+    }
+
+    /**
+     * @return the number of characters at the start of both given strings that are equal.
+     */
+    @Model
+    private static int commonPrefix(String s1, String s2) {
+        int length = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < length && s1.charAt(i) == s2.charAt(i))
+            i++;
+        return i;
+    }
+
+    /**
+     * The directories reached while walking over a path, each with the position of the slash
+     * that follows its name.
+     */
+    private static final class Trail {
+
+        private int[] ends = new int[16];
+        private Thing[] things = new Thing[16];
+        private int size = 0;
+
+        void add(int end, Thing thing) {
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, size * 2);
+                things = Arrays.copyOf(things, size * 2);
+            }
+            ends[size] = end;
+            things[size] = thing;
+            size++;
+        }
+
+        /**
+         * Forgets the directories whose slash is not among the given number of first characters.
+         */
+        void keepBefore(int common) {
+            while (size > 0 && ends[size - 1] >= common)
+                things[--size] = null;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int lastEnd() {
+            return ends[size - 1];
+        }
+
+        Thing lastThing() {
+            return things[size - 1];
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A class of queries for the files in a directory and its submaps with a given type, a size in
+ * a given range and a modification time in a given range, such as all PDF files over 100 MB
+ * modified in the last day under /a/b:
+ *
+ *     new Query(root.resolve("/a/b")).ofType(Type.PDF).largerThan(100_000_000).modifiedSince(yesterday).find()
+ *
+ * A query is answered from the file index of the directory or of the nearest directory above it.
+ * The planner counts the candidates of every index that can be used, stopping as soon as they
+ * are more than the best so far, and also weighs walking through the directory itself, whose
+ * total number of items is known. Without an index, the directory is walked through.
+ *
+ * A file that was never modified counts as modified when it was created.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class Query {
+
+    /**
+     * The ways a query can be answered.
+     */
+    public enum Plan {
+        /**
+         * The files of the asked type are looked at.
+         */
+        TYPE_INDEX,
+        /**
+         * The files with a size in the asked range are looked at.
+         */
+        SIZE_INDEX,
+        /**
+         * The files modified in the asked range are looked at.
+         */
+        TIME_INDEX,
+        /**
+         * Everything in the directory and its submaps is looked at.
+         */
+        SUBTREE_WALK
+    }
+
+    private final Directory directory;
+    private Type type = null;
+    private int minSize = 0;
+    private int maxSize = File.getMaximumSize();
+    private long minMillis = Long.MIN_VALUE;
+    private long maxMillis = Long.MAX_VALUE;
+
+    /**
+     * Makes a new query for all the files in the given directory and its submaps.
+     * @throws IllegalArgumentException
+     *         if the directory is not effective.
+     */
+    public Query(Directory directory) throws IllegalArgumentException {
+        if(directory == null)
+            throw new IllegalArgumentException();
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory whose files are asked for.
+     */
+    @Basic
+    public Directory getDirectory(){
+        return directory;
+    }
+
+    /**
+     * Only asks for files of the given type.
+     * @return this query.
+     * @throws IllegalArgumentException
+     *         if the type is not effective.
+     */
+    public Query ofType(Type type) throws IllegalArgumentException {
+        if(type == null)
+            throw new IllegalArgumentException();
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Only asks for files with a size from the given minimum up to the given maximum, both included.
+     * @return this query.
+     * @throws IllegalArgumentException
+     *         if the range is empty or not made of valid sizes.
+     */
+    public Query sizeBetween(int min, int max) throws IllegalArgumentException {
+        if(!File.isValidSize(min) || !File.isValidSize(max) || min > max)
+            throw new IllegalArgumentException();
+        this.minSize = min;
+        this.maxSize = max;
+        return this;
+    }
+
+    /**
+     * Only asks for files larger than the given size.
+     * @effect | sizeBetween(size + 1, File.getMaximumSize())
+     */
+    public Query largerThan(int size) throws IllegalArgumentException {
+        if(size >= File.getMaximumSize())
+            throw new IllegalArgumentException();
+        return sizeBetween(size + 1, File.getMaximumSize());
+    }
+
+    /**
+     * Only asks for files modified from the given time up to the given time, both included, in
+     * milliseconds since the epoch.
+     * @return this query.
+     * @throws IllegalArgumentException
+     *         if the range is empty.
+     */
+    public Query modifiedBetween(long min, long max) throws IllegalArgumentException {
+        if(min > max)
+            throw new IllegalArgumentException();
+        this.minMillis = min;
+        this.maxMillis = max;
+        return this;
+    }
+
+    /**
+     * Only asks for files modified at or after the given time.
+     * @effect | modifiedBetween(millis, Long.MAX_VALUE)
+     */
+    public Query modifiedSince(long millis){
+        return modifiedBetween(millis, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return whether the given file is asked for, not looking at where it is.
+     */
+    public boolean matches(File file){
+        if(type != null && file.getFileType() != type)
+            return false;
+        if(file.getSize() < minSize || file.getSize() > maxSize)
+            return false;
+        long millis = FileIndex.modificationOf(file);
+        return millis >= minMillis && millis <= maxMillis;
+    }
+
+    /**
+     * @return the way this query would be answered now.
+     */
+    public Plan plan(){
+        FileIndex index = FileIndex.covering(directory);
+        if(index == null)
+            return Plan.SUBTREE_WALK;
+        synchronized (index) {
+            return plan(index);
+        }
+    }
+
+    /**
+     * @return all the files in the directory and its submaps that are asked for, in no particular order.
+     * @note  In concurrent mode, changes made while the query is answered may or may not be seen.
+     */
+    public List<File> find(){
+        List<File> result = new ArrayList<File>();
+        FileIndex index = FileIndex.covering(directory);
+        if(index != null){
+            synchronized (index) {
+                if(!index.isClosed()){
+                    Plan plan = plan(index);
+                    if(plan != Plan.SUBTREE_WALK){
+                        collect(candidates(index, plan), index.getDirectory() != directory, result);
+                        return result;
+                    }
+                }
+            }
+        }
+        directory.streamSubtree().forEach(item -> {
+            if(item instanceof File && matches((File) item))
+                result.add((File) item);
+        });
+        return result;
+    }
+
+    /**
+     * @return the plan with the fewest candidates in the given index, whose lock is held.
+     */
+    @Model
+    private Plan plan(FileIndex index){
+        Plan best = Plan.SUBTREE_WALK;
+        long fewest = directory.getTotalNbItems();
+        if(type != null){
+            long count = index.ofType(type).size();
+            if(count < fewest){
+                best = Plan.TYPE_INDEX;
+                fewest = count;
+            }
+        }
+        if(minSize > 0 || maxSize < File.getMaximumSize()){
+            long count = count(index.ofSize(minSize, maxSize).values(), fewest);
+            if(count < fewest){
+                best = Plan.SIZE_INDEX;
+                fewest = count;
+            }
+        }
+        if(minMillis > Long.MIN_VALUE || maxMillis < Long.MAX_VALUE){
+            long count = count(index.ofTime(minMillis, maxMillis).values(), fewest);
+            if(count < fewest)
+                best = Plan.TIME_INDEX;
+        }
+        return best;
+    }
+
+    /**
+     * @return the number of files in the given sets, or a number of at least the given limit.
+     */
+    @Model
+    private static long count(Collection<Set<File>> sets, long limit){
+        long count = 0;
+        for(Set<File> files : sets){
+            count += files.size();
+            if(count >= limit)
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * @return the sets of files the given plan looks at.
+     */
+    @Model
+    private Collection<Set<File>> candidates(FileIndex index, Plan plan){
+        switch(plan){
+            case TYPE_INDEX:
+                return List.of(index.ofType(type));
+            case SIZE_INDEX:
+                return index.ofSize(minSize, maxSize).values();
+            default:
+                return index.ofTime(minMillis, maxMillis).values();
+        }
+    }
+
+    /**
+     * Adds the candidates that are asked for to the given list, checking they are in the
+     * directory if asked to.
+     */
+    @Model
+    private void collect(Collection<Set<File>> candidates, boolean checkPlace, List<File> result){
+        for(Set<File> files : candidates)
+            for(File file : files)
+                if(matches(file) && (!checkPlace || file.isDirectOrIndirectChildOf(directory)))
+                    result.add(file);
+    }
+}
@@ -0,0 +1,337 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Immutable;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A class of immutable views of a thing as it was at some point in time. The view of a directory
+ * holds the views of all its items, so it shows the whole tree below it as it was at one moment.
+ *
+ * Once a view of a directory was asked for, the views of that directory and everything in it are
+ * kept up to date by the writers: an operation marks the directories it changes, and before it
+ * releases its locks it publishes new views of those directories and of the directories above
+ * them, in one step for each tree. The views of all other submaps and items are shared with the
+ * old version.
+ * Reading a view only reads a volatile field, never takes a lock and is never affected by moves,
+ * renames or other changes made afterwards.
+ *
+ * @note  The view of a directory holds the views of its items in an array, so publishing a change
+ *        copies the references to the items of every directory on the way to the root.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+@Immutable
+public final class Snapshot {
+
+    /**
+     * Variable stating whether a view was ever made, so operations only look for changes to
+     * publish once views exist.
+     */
+    private static volatile boolean isUsed = false;
+
+    /**
+     * The directories with a view that were changed by the operation of the current thread and
+     * whose new views are not published yet.
+     */
+    private static final ThreadLocal<List<Directory>> PENDING = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * Variables registering the name of the thing and its name in lowercase letters.
+     */
+    private final String name;
+    private final String nameKey;
+
+    /**
+     * Variable registering the type of the file, or null if the thing is no file.
+     */
+    private final Type type;
+
+    /**
+     * Variable registering the views of the items of the directory in the order of the content,
+     * or null if the thing is no directory.
+     */
+    private final Snapshot[] items;
+
+    /**
+     * Variables registering the disk usage of the thing and the number of items below it.
+     */
+    private final int diskUsage;
+    private final int totalNbItems;
+
+    /**
+     * Makes a new view with the given values.
+     */
+    @Model
+    private Snapshot(String name, String nameKey, Type type, Snapshot[] items, int diskUsage, int totalNbItems){
+        this.name = name;
+        this.nameKey = nameKey;
+        this.type = type;
+        this.items = items;
+        this.diskUsage = diskUsage;
+        this.totalNbItems = totalNbItems;
+    }
+
+    /**
+     * Makes a new view of a directory with the given name and items.
+     */
+    @Model
+    private static Snapshot ofDirectory(String name, String nameKey, Snapshot[] items){
+        int diskUsage = 0;
+        int totalNbItems = 0;
+        for(Snapshot item : items){
+            diskUsage += item.diskUsage;
+            totalNbItems += 1 + item.totalNbItems;
+        }
+        return new Snapshot(name, nameKey, null, items, diskUsage, totalNbItems);
+    }
+
+    /**
+     * Returns the view of the given directory, making views for it and everything in it if it
+     * has none yet. From then on, the views are kept up to date by the writers.
+     * @param dir
+     *        the directory to view.
+     * @pre   The tree can not change while the views are made.
+     */
+    @Model
+    static Snapshot of(Directory dir){
+        synchronized (dir.getRoot()) {
+            isUsed = true;
+            return viewOf(dir);
+        }
+    }
+
+    /**
+     * Returns the current view of the given item, making it if it has none.
+     */
+    @Model
+    private static Snapshot viewOf(Thing item){
+        Snapshot view = item.getCachedSnapshot();
+        if(view != null)
+            return view;
+        if(item instanceof Directory)
+            view = collect((Directory) item);
+        else if(item instanceof File)
+            view = new Snapshot(item.getName(), item.getNameKey(), ((File) item).getFileType(), null, item.getDiskUsage(), 0);
+        else
+            view = new Snapshot(item.getName(), item.getNameKey(), null, null, 0, 0);
+        item.setCachedSnapshot(view);
+        return view;
+    }
+
+    /**
+     * @return a new view of the given directory, made from the current views of its items.
+     */
+    @Model
+    private static Snapshot collect(Directory dir){
+        List<Thing> content = dir.getContent();
+        Snapshot[] items = new Snapshot[content.size()];
+        for(int i = 0; i < items.length; i++)
+            items[i] = viewOf(content.get(i));
+        return ofDirectory(dir.getName(), dir.getNameKey(), items);
+    }
+
+    /**
+     * Marks the given thing as changed in its name, size or content by the operation of the current
+     * thread. The view of a file or link is forgotten; a directory with a view is published again.
+     * @param thing
+     *        the changed thing, locked for writing by the current thread.
+     */
+    static void changed(Thing thing){
+        if(!(thing instanceof Directory)){
+            if(thing.getCachedSnapshot() != null)
+                thing.setCachedSnapshot(null);
+            return;
+        }
+        if(thing.getCachedSnapshot() == null)
+            return;
+        List<Directory> pending = PENDING.get();
+        if(!pending.contains(thing))
+            pending.add((Directory) thing);
+    }
+
+    /**
+     * Publishes the new views of the directories changed by the operation of the current thread,
+     * and of the directories above them. The changed directories get a view made from their
+     * content; the directories above only get the new views of their changed submaps.
+     * The views of each tree are published while holding the monitor of its root, so writers in
+     * different trees never wait for each other. The changed directories are forgotten afterwards,
+     * also if publishing fails.
+     * @pre   The current thread still holds the locks of the changed directories.
+     * @pre   The roots of the changed directories can not change while the views are published.
+     */
+    static void publish(){
+        if(!isUsed)
+            return;
+        List<Directory> pending = PENDING.get();
+        if(pending.isEmpty())
+            return;
+        try {
+            Map<Directory, List<Directory>> byRoot = new IdentityHashMap<Directory, List<Directory>>();
+            for(Directory dir : pending)
+                byRoot.computeIfAbsent(dir.getRoot(), root -> new ArrayList<Directory>()).add(dir);
+            for(Map.Entry<Directory, List<Directory>> tree : byRoot.entrySet())
+                synchronized (tree.getKey()) {
+                    publish(tree.getValue());
+                }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Publishes the new views of the given changed directories of one tree and of the directories
+     * above them.
+     * @pre   The current thread holds the monitor of the root of the tree.
+     */
+    @Model
+    private static void publish(List<Directory> pending){
+        Set<Directory> changed = Collections.newSetFromMap(new IdentityHashMap<Directory, Boolean>());
+        Set<Directory> toPublish = Collections.newSetFromMap(new IdentityHashMap<Directory, Boolean>());
+        for(Directory dir : pending){
+            changed.add(dir);
+            for(Directory at = dir; at != null && at.getCachedSnapshot() != null; at = at.getDirectory())
+                toPublish.add(at);
+        }
+        List<Directory> order = new ArrayList<Directory>(toPublish);
+        order.sort(Comparator.comparingInt(Directory::getDepth).reversed());
+        // The deepest directories go first, so every directory sees the new views below it.
+        Map<Snapshot, Snapshot> replaced = new IdentityHashMap<Snapshot, Snapshot>();
+        for(Directory dir : order){
+            Snapshot old = dir.getCachedSnapshot();
+            Snapshot now = changed.contains(dir) ? collect(dir) : replace(old, replaced);
+            replaced.put(old, now);
+            dir.setCachedSnapshot(now);
+        }
+    }
+
+    /**
+     * @return a view of a directory like the given one, whose items that are keys of the given map
+     *         are replaced by their value.
+     */
+    @Model
+    private static Snapshot replace(Snapshot dir, Map<Snapshot, Snapshot> replaced){
+        Snapshot[] items = dir.items.clone();
+        for(int i = 0; i < items.length; i++){
+            Snapshot now = replaced.get(items[i]);
+            if(now != null)
+                items[i] = now;
+        }
+        return ofDirectory(dir.name, dir.nameKey, items);
+    }
+
+    /**
+     * @return the name of the thing.
+     */
+    @Basic @Immutable
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * @return whether the thing is a directory.
+     */
+    @Immutable
+    public boolean isDirectory(){
+        return items != null;
+    }
+
+    /**
+     * @return whether the thing is a file.
+     */
+    @Immutable
+    public boolean isFile(){
+        return type != null;
+    }
+
+    /**
+     * @return whether the thing is a link.
+     */
+    @Immutable
+    public boolean isLink(){
+        return !isDirectory() && !isFile();
+    }
+
+    /**
+     * @return the type of the file, or null if the thing is no file.
+     */
+    @Basic @Immutable
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * @return the size of the file, or the total disk usage of all files below the directory.
+     *         Links use no disk space.
+     */
+    @Basic @Immutable
+    public int getTotalDiskUsage(){
+        return diskUsage;
+    }
+
+    /**
+     * @return the number of items in the directory and its submaps, 0 if the thing is no directory.
+     */
+    @Basic @Immutable
+    public int getTotalNbItems(){
+        return totalNbItems;
+    }
+
+    /**
+     * @return the number of items directly in the directory, 0 if the thing is no directory.
+     */
+    @Immutable
+    public int getNbItems(){
+        return isDirectory() ? items.length : 0;
+    }
+
+    /**
+     * Returns the view of the item at the given index of the directory, starting from 1.
+     * @throws IndexOutOfBoundsException
+     *         if there is no item at the given index.
+     *         | index < 1 || index > getNbItems()
+     */
+    @Immutable
+    public Snapshot getItemAt(int index) throws IndexOutOfBoundsException{
+        if(index < 1 || index > getNbItems())
+            throw new IndexOutOfBoundsException(index);
+        return items[index - 1];
+    }
+
+    /**
+     * Returns the view of the item with the given name in the directory, ignoring capital letters.
+     * @return the view of the item with the given name, or null if there is none.
+     * @throws IllegalArgumentException
+     *         if the name is not effective.
+     *         | name == null
+     */
+    @Immutable
+    public Snapshot getItem(String name) throws IllegalArgumentException{
+        if(name == null)
+            throw new IllegalArgumentException();
+        if(!isDirectory())
+            return null;
+        String key = Thing.toNameKey(name);
+        int low = 0;
+        int high = items.length - 1;
+        while(low <= high){
+            int middle = (low + high) >>> 1;
+            int comparison = items[middle].nameKey.compareTo(key);
+            if(comparison < 0)
+                low = middle + 1;
+            else if(comparison > 0)
+                high = middle - 1;
+            else
+                return items[middle];
+        }
+        return null;
+    }
+}
@@ -0,0 +1,312 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A class of subscriptions to the changes of a directory and everything in it.
+ *
+ * The thread making a change only puts an event in the queue of every subscription above the
+ * changed thing and never waits: the events are handed to the consumer of the subscription in
+ * batches, on its executor. The queue of a subscription is bounded. Resizes of a file that was
+ * already resized since the last batch replace the earlier event, and when the queue is full, all
+ * its events are dropped and replaced by a single OVERFLOWED event, after which the consumer has
+ * to read the state of the subtree again.
+ *
+ * When no subscription exists, a change costs a single read of a volatile field.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class Subscription implements AutoCloseable {
+
+    /**
+     * Variable referencing the subscriptions of every directory that has any. The map is
+     * replaced as a whole when a subscription is added or closed.
+     */
+    private static volatile Map<Directory, Subscription[]> subscriptions = Collections.emptyMap();
+
+    private final Directory directory;
+    private final Consumer<List<ChangeEvent>> consumer;
+    private final Executor executor;
+    private final int capacity;
+
+    /**
+     * The events that were not handed to the consumer yet, and the place of the last resize of
+     * every file among them. Guarded by this subscription.
+     */
+    private ArrayList<ChangeEvent> pending = new ArrayList<ChangeEvent>();
+    private final Map<Thing, Integer> resizes = new IdentityHashMap<Thing, Integer>();
+
+    /**
+     * The state of the delivery. Guarded by this subscription.
+     */
+    private boolean isScheduled = false;
+    private boolean isOverflowed = false;
+    private boolean isClosed = false;
+    private long nbDelivered = 0;
+    private long nbOverflows = 0;
+
+    /**
+     * Makes a new subscription that is not registered yet.
+     */
+    @Model
+    private Subscription(Directory directory, Consumer<List<ChangeEvent>> consumer, Executor executor, int capacity){
+        this.directory = directory;
+        this.consumer = consumer;
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Subscribes the given consumer to the changes of the given directory and everything in it.
+     * @param directory
+     *        the directory whose changes are delivered.
+     * @param consumer
+     *        the consumer of the batches of events, which are never empty.
+     * @param executor
+     *        the executor running the deliveries.
+     * @param capacity
+     *        the number of events that may wait for the consumer.
+     * @return the new subscription.
+     * @throws IllegalArgumentException
+     *         if the directory, consumer or executor is not effective or the capacity is not positive.
+     */
+    static Subscription subscribe(Directory directory, Consumer<List<ChangeEvent>> consumer, Executor executor,
+            int capacity) throws IllegalArgumentException {
+        if(directory == null || consumer == null || executor == null || capacity < 1)
+            throw new IllegalArgumentException();
+        Subscription subscription = new Subscription(directory, consumer, executor, capacity);
+        synchronized (Subscription.class) {
+            Map<Directory, Subscription[]> next = new IdentityHashMap<Directory, Subscription[]>(subscriptions);
+            Subscription[] old = next.getOrDefault(directory, new Subscription[0]);
+            Subscription[] all = Arrays.copyOf(old, old.length + 1);
+            all[old.length] = subscription;
+            next.put(directory, all);
+            subscriptions = next;
+        }
+        return subscription;
+    }
+
+    /**
+     * @return the directory whose changes are delivered.
+     */
+    @Basic
+    public Directory getDirectory(){
+        return directory;
+    }
+
+    /**
+     * @return whether this subscription is closed.
+     */
+    public synchronized boolean isClosed(){
+        return isClosed;
+    }
+
+    /**
+     * @return the number of events handed to the consumer.
+     */
+    public synchronized long getNbDelivered(){
+        return nbDelivered;
+    }
+
+    /**
+     * @return the number of times the queue was full.
+     */
+    public synchronized long getNbOverflows(){
+        return nbOverflows;
+    }
+
+    /**
+     * Stops the delivery of events. Events that are waiting are dropped.
+     */
+    @Override
+    public void close(){
+        synchronized (Subscription.class) {
+            Map<Directory, Subscription[]> next = new IdentityHashMap<Directory, Subscription[]>(subscriptions);
+            Subscription[] old = next.get(directory);
+            if(old != null){
+                Subscription[] rest = Arrays.stream(old).filter(s -> s != this).toArray(Subscription[]::new);
+                if(rest.length == 0)
+                    next.remove(directory);
+                else
+                    next.put(directory, rest);
+                subscriptions = next.isEmpty() ? Collections.emptyMap() : next;
+            }
+        }
+        synchronized (this) {
+            isClosed = true;
+            pending.clear();
+            resizes.clear();
+        }
+    }
+
+    /**********************************************************
+     * publishing
+     **********************************************************/
+
+    /**
+     * Publishes the creation of the given thing in its directory.
+     */
+    static void created(Thing thing){
+        if(!subscriptions.isEmpty())
+            publish(new ChangeEvent(ChangeEvent.Kind.CREATED, thing, thing.getAbsolutePath(), null, null, 0), thing, null);
+    }
+
+    /**
+     * Publishes the new size of the given file.
+     */
+    static void resized(File file){
+        if(!subscriptions.isEmpty())
+            publish(new ChangeEvent(ChangeEvent.Kind.RESIZED, file, file.getAbsolutePath(), null, null, file.getSize()), file, null);
+    }
+
+    /**
+     * Publishes the new name of the given thing, which had the given name before.
+     */
+    static void renamed(Thing thing, String oldName){
+        if(!subscriptions.isEmpty() && !thing.getName().equals(oldName))
+            publish(new ChangeEvent(ChangeEvent.Kind.RENAMED, thing, thing.getAbsolutePath(), oldName, null, 0), thing, null);
+    }
+
+    /**
+     * Publishes the move of the given thing, which was in the given directory before, to both
+     * the subscriptions above its old and above its new place.
+     */
+    static void moved(Thing thing, Directory from){
+        if(!subscriptions.isEmpty())
+            publish(new ChangeEvent(ChangeEvent.Kind.MOVED, thing, thing.getAbsolutePath(), null, from, 0), thing, from);
+    }
+
+    /**
+     * Publishes the termination of the given thing, which was in the given directory.
+     */
+    static void terminated(Thing thing, Directory from){
+        if(subscriptions.isEmpty())
+            return;
+        String path = (from == null) ? thing.getAbsolutePath() : from.getAbsolutePath() + "/" + thing.getPathName();
+        publish(new ChangeEvent(ChangeEvent.Kind.TERMINATED, thing, path, null, from, 0), thing, from);
+    }
+
+    /**
+     * @return whether any subscription exists.
+     */
+    static boolean isObserved(){
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Puts the given event in the queue of every subscription of the given thing or a directory
+     * above it, or of the given other directory or a directory above that.
+     */
+    @Model
+    private static void publish(ChangeEvent event, Thing thing, Directory other){
+        Map<Directory, Subscription[]> all = subscriptions;
+        List<Subscription> reached = null;
+        for(Thing at = thing; at != null; at = at.getDirectory())
+            reached = collect(all, at, reached);
+        for(Thing at = other; at != null; at = at.getDirectory())
+            reached = collect(all, at, reached);
+        if(reached != null)
+            for(Subscription subscription : reached)
+                subscription.offer(event);
+    }
+
+    @Model
+    private static List<Subscription> collect(Map<Directory, Subscription[]> all, Thing at, List<Subscription> reached){
+        Subscription[] found = all.get(at);
+        if(found == null)
+            return reached;
+        if(reached == null)
+            reached = new ArrayList<Subscription>(found.length);
+        for(Subscription subscription : found)
+            if(!reached.contains(subscription))
+                reached.add(subscription);
+        return reached;
+    }
+
+    /**
+     * Puts the given event in the queue of this subscription without waiting, and makes sure a
+     * delivery is scheduled. If the executor refuses the delivery, the queue overflows, and the
+     * next event tries to schedule it again.
+     */
+    @Model
+    private void offer(ChangeEvent event){
+        synchronized (this) {
+            if(isClosed)
+                return;
+            if(!isOverflowed){
+                Integer at = (event.getKind() == ChangeEvent.Kind.RESIZED) ? resizes.get(event.getThing()) : null;
+                if(at != null){
+                    pending.set(at, event);
+                } else if(pending.size() >= capacity){
+                    overflow();
+                } else {
+                    if(event.getKind() == ChangeEvent.Kind.RESIZED)
+                        resizes.put(event.getThing(), pending.size());
+                    pending.add(event);
+                }
+            }
+            if(isScheduled)
+                return;
+            isScheduled = true;
+        }
+        try {
+            executor.execute(this::deliver);
+        } catch (RuntimeException e) {
+            // The change that caused the event must not fail because no delivery could be scheduled.
+            synchronized (this) {
+                isScheduled = false;
+                if(!isOverflowed)
+                    overflow();
+            }
+        }
+    }
+
+    /**
+     * Replaces the waiting events by a single OVERFLOWED event, while holding the lock of this
+     * subscription.
+     */
+    @Model
+    private void overflow(){
+        pending.clear();
+        resizes.clear();
+        pending.add(new ChangeEvent(ChangeEvent.Kind.OVERFLOWED, null, null, null, null, 0));
+        isOverflowed = true;
+        nbOverflows++;
+    }
+
+    /**
+     * Hands the waiting events to the consumer in batches, until none are left.
+     */
+    @Model
+    private void deliver(){
+        while(true){
+            List<ChangeEvent> batch;
+            synchronized (this) {
+                if(isClosed || pending.isEmpty()){
+                    isScheduled = false;
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<ChangeEvent>();
+                resizes.clear();
+                isOverflowed = false;
+                nbDelivered += batch.size();
+            }
+            try {
+                consumer.accept(Collections.unmodifiableList(batch));
+            } catch (RuntimeException e) {
+                // A failing consumer loses its batch, but keeps getting the next ones.
+            }
+        }
+    }
+}
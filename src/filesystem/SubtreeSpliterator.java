@@ -0,0 +1,199 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A class of spliterators walking through everything below a directory, without the directory
+ * itself, one item at a time.
+ *
+ * The walk keeps one range of items per directory it is in: the directories on the way down for
+ * a depth-first walk, the directories of the next levels for a breadth-first one. Nothing is
+ * copied; the items are read from the content of the directories when they are reached, each
+ * while holding the read lock of its directory.
+ *
+ * A depth-first walk visits every directory right before its items, in the order of the content,
+ * and splits the range of its highest directory in two, so the parts stay in order and are large.
+ * A breadth-first walk visits the items level by level and splits by handing over whole ranges,
+ * so a parallel breadth-first walk has no order.
+ *
+ * @note  In concurrent mode, a directory is only locked while one of its items is read, so changes
+ *        made between two items may or may not be seen. Walk a snapshot for a view that does not
+ *        change.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+final class SubtreeSpliterator implements Spliterator<Thing> {
+
+    /**
+     * A class of ranges of the items of one directory that are still to be visited.
+     */
+    private static final class Range {
+
+        private final Directory dir;
+        private int next;
+        private int end;
+
+        Range(Directory dir, int next, int end){
+            this.dir = dir;
+            this.next = next;
+            this.end = end;
+        }
+
+        /**
+         * @return the number of items left, which is less if items were removed in the meantime.
+         */
+        int remaining(){
+            Locking.lockRead(dir);
+            try {
+                return Math.max(0, Math.min(end, dir.getContent().size()) - next);
+            } finally {
+                Locking.unlockRead(dir);
+            }
+        }
+
+        /**
+         * @return the next item, or null if none are left.
+         */
+        Thing take(){
+            Locking.lockRead(dir);
+            try {
+                List<Thing> content = dir.getContent();
+                return (next < Math.min(end, content.size())) ? content.get(next++) : null;
+            } finally {
+                Locking.unlockRead(dir);
+            }
+        }
+    }
+
+    private final boolean isBreadthFirst;
+
+    /**
+     * The ranges still to be visited. Depth first, the last range is of the deepest directory and
+     * is visited first; breadth first, the first range is visited first.
+     */
+    private final ArrayDeque<Range> ranges;
+
+    /**
+     * The estimated number of items left.
+     */
+    private long estimate;
+
+    /**
+     * Makes a new spliterator walking through everything below the given directory.
+     * @param breadthFirst
+     *        whether the items are visited level by level.
+     */
+    SubtreeSpliterator(Directory dir, boolean breadthFirst){
+        this.isBreadthFirst = breadthFirst;
+        this.ranges = new ArrayDeque<Range>();
+        ranges.add(new Range(dir, 0, Integer.MAX_VALUE));
+        this.estimate = dir.getTotalNbItems();
+    }
+
+    @Model
+    private SubtreeSpliterator(boolean breadthFirst, ArrayDeque<Range> ranges, long estimate){
+        this.isBreadthFirst = breadthFirst;
+        this.ranges = ranges;
+        this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Thing> action){
+        while(!ranges.isEmpty()){
+            Range range = isBreadthFirst ? ranges.peekFirst() : ranges.peekLast();
+            Thing item = range.take();
+            if(item == null){
+                if(isBreadthFirst)
+                    ranges.pollFirst();
+                else
+                    ranges.pollLast();
+                continue;
+            }
+            if(item instanceof Directory)
+                ranges.addLast(new Range((Directory) item, 0, Integer.MAX_VALUE));
+            if(estimate > 0)
+                estimate--;
+            action.accept(item);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Thing> action){
+        while(tryAdvance(action))
+            ;
+    }
+
+    @Override
+    public Spliterator<Thing> trySplit(){
+        return isBreadthFirst ? splitRanges() : splitHighestRange();
+    }
+
+    /**
+     * Splits off the first half of the items of the highest directory that has at least two
+     * left, together with the ranges below it, which are all visited before the rest of it.
+     */
+    @Model
+    private Spliterator<Thing> splitHighestRange(){
+        ArrayDeque<Range> higher = new ArrayDeque<Range>();
+        while(!ranges.isEmpty()){
+            Range range = ranges.pollFirst();
+            int remaining = range.remaining();
+            if(remaining >= 2){
+                int middle = range.next + remaining / 2;
+                ArrayDeque<Range> prefix = new ArrayDeque<Range>();
+                prefix.add(new Range(range.dir, range.next, middle));
+                prefix.addAll(ranges);
+                range.next = middle;
+                ranges.clear();
+                ranges.addAll(higher);
+                ranges.add(range);
+                long half = estimate / 2;
+                estimate -= half;
+                return new SubtreeSpliterator(false, prefix, half);
+            }
+            higher.add(range);
+        }
+        ranges.addAll(higher);
+        return null;
+    }
+
+    /**
+     * Splits off the first half of the ranges, or half of the only range.
+     */
+    @Model
+    private Spliterator<Thing> splitRanges(){
+        ranges.removeIf(range -> range.remaining() == 0);
+        ArrayDeque<Range> split = new ArrayDeque<Range>();
+        if(ranges.size() >= 2){
+            for(int i = ranges.size() / 2; i > 0; i--)
+                split.add(ranges.pollFirst());
+        } else if(ranges.size() == 1 && ranges.peekFirst().remaining() >= 2){
+            Range range = ranges.peekFirst();
+            int middle = range.next + range.remaining() / 2;
+            split.add(new Range(range.dir, range.next, middle));
+            range.next = middle;
+        } else {
+            return null;
+        }
+        long half = estimate / 2;
+        estimate -= half;
+        return new SubtreeSpliterator(true, split, half);
+    }
+
+    @Override
+    public long estimateSize(){
+        return ranges.isEmpty() ? 0 : Math.max(estimate, 1);
+    }
+
+    @Override
+    public int characteristics(){
+        return isBreadthFirst ? NONNULL : ORDERED | NONNULL;
+    }
+}
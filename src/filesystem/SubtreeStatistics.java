@@ -0,0 +1,246 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Basic;
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A class of statistics about all the items in a directory and its submaps, computed in one
+ * parallel walk over the content of the directories.
+ *
+ * @note  The walk does not use the totals each directory keeps, so it can be used to check them.
+ *        The tree may not be changed while the statistics are computed.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public class SubtreeStatistics {
+
+    /**
+     * The number of items in a range of content above which the range is split over several workers.
+     */
+    private static final int SPLIT_THRESHOLD = 1024;
+
+    /**
+     * Variable registering the total amount of bytes of the files.
+     */
+    private long totalDiskUsage = 0;
+
+    /**
+     * Variables registering the number of items, files, directories and links.
+     */
+    private int nbItems = 0;
+    private int nbFiles = 0;
+    private int nbDirectories = 0;
+    private int nbLinks = 0;
+
+    /**
+     * Variable registering the depth of the deepest item, the items of the directory itself having depth 1.
+     */
+    private int maxDepth = 0;
+
+    /**
+     * Variables registering the number of files and their bytes per type, indexed by the ordinal of the type.
+     */
+    private final int[] nbFilesPerType = new int[Type.values().length];
+    private final long[] diskUsagePerType = new long[Type.values().length];
+
+    /**
+     * Makes new empty statistics.
+     */
+    @Model
+    private SubtreeStatistics(){
+    }
+
+    /**
+     * Computes the statistics of the given directory on the common fork-join pool.
+     * @param dir
+     *        the directory to walk through.
+     * @effect | of(dir, ForkJoinPool.commonPool())
+     */
+    public static SubtreeStatistics of(Directory dir) throws IllegalArgumentException {
+        return of(dir, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes the statistics of the given directory on the given fork-join pool.
+     * @param dir
+     *        the directory to walk through.
+     * @param pool
+     *        the pool whose workers walk through the directory.
+     * @return the statistics of all the items in the directory and its submaps.
+     * @throws IllegalArgumentException
+     *         if the directory or pool is not effective.
+     *         | dir == null || pool == null
+     */
+    public static SubtreeStatistics of(Directory dir, ForkJoinPool pool) throws IllegalArgumentException {
+        if(dir == null || pool == null)
+            throw new IllegalArgumentException();
+        // The workers read the content without locks, so in concurrent mode nothing may change
+        // while they walk.
+        Locking.lockStructure();
+        try {
+            return pool.invoke(new CountTask(dir.getContent(), 0, dir.getContent().size(), 1));
+        } finally {
+            Locking.unlockStructure();
+        }
+    }
+
+    /**
+     * @return the total amount of bytes of the files.
+     */
+    @Basic
+    public long getTotalDiskUsage() {
+        return totalDiskUsage;
+    }
+
+    /**
+     * @return the number of files, directories and links.
+     */
+    @Basic
+    public int getNbItems() {
+        return nbItems;
+    }
+
+    /**
+     * @return the number of files.
+     */
+    @Basic
+    public int getNbFiles() {
+        return nbFiles;
+    }
+
+    /**
+     * @return the number of directories.
+     */
+    @Basic
+    public int getNbDirectories() {
+        return nbDirectories;
+    }
+
+    /**
+     * @return the number of links.
+     */
+    @Basic
+    public int getNbLinks() {
+        return nbLinks;
+    }
+
+    /**
+     * @return the depth of the deepest item, 0 if the directory is empty.
+     */
+    @Basic
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param type
+     *        the type of the files to count.
+     * @return the number of files of the given type.
+     */
+    public int getNbFilesOfType(Type type) {
+        return nbFilesPerType[type.ordinal()];
+    }
+
+    /**
+     * @param type
+     *        the type of the files to count.
+     * @return the total amount of bytes of the files of the given type.
+     */
+    public long getDiskUsageOfType(Type type) {
+        return diskUsagePerType[type.ordinal()];
+    }
+
+    /**
+     * Adds the counts of the given statistics to these statistics.
+     * @param other
+     *        the statistics to add.
+     */
+    @Model
+    private void merge(SubtreeStatistics other) {
+        totalDiskUsage += other.totalDiskUsage;
+        nbItems += other.nbItems;
+        nbFiles += other.nbFiles;
+        nbDirectories += other.nbDirectories;
+        nbLinks += other.nbLinks;
+        maxDepth = Math.max(maxDepth, other.maxDepth);
+        for(int i = 0; i < nbFilesPerType.length; i++){
+            nbFilesPerType[i] += other.nbFilesPerType[i];
+            diskUsagePerType[i] += other.diskUsagePerType[i];
+        }
+    }
+
+    /**
+     * A task counting a range of the content of a directory. Large ranges are split in two
+     * and every submap is counted by a task of its own.
+     */
+    private static class CountTask extends RecursiveTask<SubtreeStatistics> {
+
+        private final List<Thing> items;
+        private final int from;
+        private final int to;
+        private final int depth;
+
+        /**
+         * @param items
+         *        the content of a directory.
+         * @param from
+         *        the index of the first item to count.
+         * @param to
+         *        the index after the last item to count.
+         * @param depth
+         *        the depth of the items.
+         */
+        CountTask(List<Thing> items, int from, int to, int depth) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected SubtreeStatistics compute() {
+            if(to - from > SPLIT_THRESHOLD){
+                int middle = (from + to) >>> 1;
+                CountTask left = new CountTask(items, from, middle, depth);
+                left.fork();
+                SubtreeStatistics result = new CountTask(items, middle, to, depth).compute();
+                result.merge(left.join());
+                return result;
+            }
+            SubtreeStatistics result = new SubtreeStatistics();
+            if(to > from)
+                result.maxDepth = depth;
+            CountTask[] subtasks = new CountTask[to - from];
+            int nbSubtasks = 0;
+            for(int i = from; i < to; i++){
+                Thing item = items.get(i);
+                result.nbItems++;
+                if(item instanceof File){
+                    File file = (File) item;
+                    result.nbFiles++;
+                    result.totalDiskUsage += file.getSize();
+                    result.nbFilesPerType[file.getFileType().ordinal()]++;
+                    result.diskUsagePerType[file.getFileType().ordinal()] += file.getSize();
+                } else if(item instanceof Directory){
+                    Directory dir = (Directory) item;
+                    result.nbDirectories++;
+                    List<Thing> content = dir.getContent();
+                    if(content.size() > 0){
+                        CountTask subtask = new CountTask(content, 0, content.size(), depth + 1);
+                        subtask.fork();
+                        subtasks[nbSubtasks++] = subtask;
+                    }
+                } else if(item instanceof Link){
+                    result.nbLinks++;
+                }
+            }
+            for(int i = nbSubtasks - 1; i >= 0; i--)
+                result.merge(subtasks[i].join());
+            return result;
+        }
+    }
+}
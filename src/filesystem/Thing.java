@@ -4,7 +4,13 @@ import be.kuleuven.cs.som.annotate.Immutable;
 import be.kuleuven.cs.som.annotate.Model;
 import be.kuleuven.cs.som.annotate.Raw;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *  @invar	Each class or subclass must have a properly spelled name.
@@ -18,11 +24,25 @@ public abstract class Thing {
      * A parameter describing the name of an object
      */
     protected String name = getDefaultName();
+    /**
+     * The name of this thing in lowercase letters, used to order and look up the items of a directory.
+     */
+    private String nameKey = toNameKey(getDefaultName());
     /**
      * A parameter describing if the item still exists.
      */
     protected boolean isTerminated = false;
 
+    /**
+     * The links referencing this thing, or null if there are none. Guarded by this thing.
+     */
+    private ArrayList<Link> links = null;
+
+    /**
+     * Variable referencing the view of this thing as it is now, or null if it has none.
+     */
+    private volatile Snapshot snapshot = null;
+
     /**
      * A parameter stating the directory of an object. The standard directory will always be "dir"
      */
@@ -48,15 +68,8 @@ public abstract class Thing {
      */
     @Raw
     public Thing(Directory mydirectory) throws DirAlreadyContainsThingException{
-        if(mydirectory == null)
-            setDirectory(mydirectory);
-        else {
-            if(mydirectory.getContent().contains(this))
-                throw new DirAlreadyContainsThingException();
-            setDirectory(mydirectory);
-            mydirectory.add(this);
-        }
-
+        this.creationTime = System.currentTimeMillis();
+        enter(mydirectory);
     }
 
     /**
@@ -69,6 +82,84 @@ public abstract class Thing {
         this(null);
     }
 
+    /**
+     * Initialise a new root thing that was created at the given time, such as a thing
+     * copied from another filesystem.
+     *
+     * @param creationMillis
+     *        the time of creation, in milliseconds since the epoch.
+     * @post  | new.getCreationMillis() == creationMillis
+     * @post  | new.getDirectory() == null
+     */
+    @Raw
+    Thing(long creationMillis){
+        this.creationTime = creationMillis;
+    }
+
+    /**
+     * Places a new thing in the given directory. Subclasses call this at the end of their
+     * constructors, so a thing only becomes an item of its directory once it is complete.
+     *
+     * @param mydirectory
+     *        the directory one level higher then the thing, or null for a root.
+     * @effect the directory of the thing is set to the given directory
+     *          |setDirectory(mydirectory)
+     * @effect the thing is added to the Arraylist of items that the directory contains
+     *          |myDirectory.add(this)
+     * @throws DirAlreadyContainsThingException
+     *         the item already exists within the given directory.
+     *         |mydirectory.hasAsItem(this)
+     */
+    @Raw @Model
+    protected void enter(Directory mydirectory) throws DirAlreadyContainsThingException{
+        Locking.lockWrite(mydirectory);
+        try {
+            if(mydirectory != null && mydirectory.hasAsItem(this))
+                throw new DirAlreadyContainsThingException();
+            setDirectory(mydirectory);
+            if(mydirectory != null){
+                mydirectory.add(this);
+                Journal.logCreate(this);
+                Subscription.created(this);
+                FileIndex.placed(this, null);
+            }
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(mydirectory);
+        }
+    }
+
+    /**
+     * Locks the directory of this thing for writing, making sure this thing did not move
+     * away before the lock was taken.
+     *
+     * @return the directory of this thing, possibly null, locked with Locking.lockWrite.
+     */
+    @Model
+    Directory lockDirectory(){
+        return lockDirectory(null);
+    }
+
+    /**
+     * Locks the directory of this thing and the given other directory for writing, making sure
+     * this thing did not move away before the locks were taken.
+     *
+     * @param  other
+     *         another directory to lock, possibly null.
+     * @return the directory of this thing, possibly null, locked with Locking.lockWrite
+     *         together with the given directory.
+     */
+    @Model
+    Directory lockDirectory(Directory other){
+        while(true){
+            Directory dir = getDirectory();
+            Locking.lockWrite(dir, other);
+            if(getDirectory() == dir)
+                return dir;
+            Locking.unlockWrite(dir, other);
+        }
+    }
+
 
 
     /**
@@ -84,11 +175,87 @@ public abstract class Thing {
      */
 
     public void terminate() throws FileNotWritableException{
-        if(!getDirectory().isWriteable())
-            throw new FileNotWritableException(getDirectory());
-        this.isTerminated = true;
-        remove(getDirectory());
-        setDirectory(null);
+        Directory dir = lockDirectory();
+        try {
+            if(!dir.isWriteable())
+                throw new FileNotWritableException(dir);
+            Journal.logTerminate(this);
+            setTerminated();
+            remove(dir);
+            setDirectory(null);
+            Subscription.terminated(this, dir);
+            FileIndex.placed(this, dir);
+        } finally {
+            Snapshot.publish();
+            Locking.unlockWrite(dir);
+        }
+    }
+
+    /**
+     * Marks this thing as terminated, and the links referencing it as referencing a terminated thing.
+     * @post  | new.isTerminated
+     * @post  | for link in getLinks(): !(new link).getState()
+     * @post  | new.getNbLinks() == 0
+     * @effect the started link sweeper, if any, is told about those links.
+     */
+    @Model
+    void setTerminated(){
+        ArrayList<Link> dependents;
+        synchronized (this) {
+            this.isTerminated = true;
+            dependents = links;
+            links = null;
+        }
+        if(dependents != null){
+            for(Link link : dependents)
+                link.setState(false);
+            LinkSweeper.died(dependents);
+        }
+    }
+
+    /**
+     * Registers the given link as referencing this thing.
+     * @return whether the link is registered, which is not the case if this thing is terminated.
+     *         | result == !isTerminated
+     */
+    @Model
+    synchronized boolean addLink(Link link){
+        if(isTerminated)
+            return false;
+        if(links == null)
+            links = new ArrayList<Link>(1);
+        links.add(link);
+        return true;
+    }
+
+    /**
+     * Forgets the given link, which no longer references this thing.
+     * @post  | !new.getLinks().contains(link)
+     */
+    @Model
+    synchronized void removeLink(Link link){
+        if(links == null)
+            return;
+        links.remove(link);
+        if(links.isEmpty())
+            links = null;
+    }
+
+    /**
+     * Returns the links that reference this thing and are not terminated.
+     * @return a new list of those links.
+     * @note   The links in the directories of an opened image that were not read yet are not known.
+     */
+    public synchronized List<Link> getLinks(){
+        return (links == null) ? new ArrayList<Link>() : new ArrayList<Link>(links);
+    }
+
+    /**
+     * @return the number of links that reference this thing and are not terminated.
+     *         | result == getLinks().size()
+     */
+    public synchronized int getNbLinks(){
+        return (links == null) ? 0 : links.size();
     }
 
 
@@ -115,7 +282,49 @@ public abstract class Thing {
      */
     @Model
     protected boolean isValidName(String name) {
-        return (name != null && name.matches("[a-zA-Z_0-9.-]+"));
+        return hasValidCharacters(name, true);
+    }
+
+    /**
+     * Table stating for each ASCII character whether it may be used in a name: letters,
+     * digits, hyphens and underscores. Dots are handled apart, see hasValidCharacters.
+     */
+    private static final boolean[] NAME_CHARACTERS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            NAME_CHARACTERS[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++)
+            NAME_CHARACTERS[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            NAME_CHARACTERS[c] = true;
+        NAME_CHARACTERS['_'] = true;
+        NAME_CHARACTERS['-'] = true;
+    }
+
+    /**
+     * Check whether the given name is effective, not empty and consists only of letters,
+     * digits, hyphens, underscores and, if allowed, dots.
+     *
+     * @param  	name
+     *			The name to be checked
+     * @param   allowDots
+     *          Whether the name may contain dots.
+     * @return	| if (allowDots) then result ==
+     * 			|	(name != null) && name.matches("[a-zA-Z_0-9.-]+")
+     * 			| else result ==
+     * 			|	(name != null) && name.matches("[a-zA-Z_0-9-]+")
+     */
+    @Model
+    static boolean hasValidCharacters(String name, boolean allowDots) {
+        if (name == null || name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= NAME_CHARACTERS.length || !(NAME_CHARACTERS[c] || (allowDots && c == '.')))
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -129,14 +338,49 @@ public abstract class Thing {
      *          | if (isValidName(name))
      *          |      then new.getName().equals(name)
      *          |      else new.getName().equals(getDefaultName())
+     * @post    If this thing is an item of its directory, it is moved to the place
+     *          of its new name in the content of that directory.
+     * @effect  The cached path of this thing is forgotten.
+     *          | invalidatePath()
      */
     @Raw @Model
     protected void setName(String name) {
+        Directory dir = getDirectory();
+        boolean isListed = (dir != null && dir.hasAsItem(this));
+        if(isListed)
+            dir.removeItem(this);
         if (isValidName(name)) {
             this.name = name;
         } else {
             this.name = getDefaultName();
         }
+        this.nameKey = toNameKey(this.name);
+        invalidatePath();
+        Snapshot.changed(this);
+        if(isListed)
+            dir.insertItem(this);
+    }
+
+    /**
+     * Return the name of this thing in lowercase letters. Two things have the same key
+     * if their names only differ in the use of lower- and uppercase letters.
+     */
+    @Raw @Basic
+    String getNameKey() {
+        return nameKey;
+    }
+
+    /**
+     * Return the key under which a thing with the given name is ordered and looked up.
+     *
+     * @param  name
+     *         The name to convert.
+     * @return The given name in lowercase letters.
+     *         | result == name.toLowerCase()
+     */
+    @Model
+    static String toNameKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
     }
 
     /**
@@ -160,17 +404,22 @@ public abstract class Thing {
      * if this is a valid name otherwise there is no change.
      * | if (isValidName(name)
      * | then setName(name)
-      @effect after the name is changed, the object map is sorted by name
-     *        |getDirectory.sortMap();
      */
     public void changeName(String name) {
 
         if (isValidName(name)){
-            setName(name);
-            setModificationTime();
-            if(getDirectory() != null){
-                getDirectory().sortMap();
-        }
+            Directory dir = lockDirectory();
+            try {
+                String from = Journal.pathOf(this);
+                String oldName = getName();
+                setName(name);
+                setModificationTime();
+                Journal.logRename(this, from);
+                Subscription.renamed(this, oldName);
+            } finally {
+                Snapshot.publish();
+                Locking.unlockWrite(dir);
+            }
     }}
 
 
@@ -178,11 +427,17 @@ public abstract class Thing {
      *  Sets the directory of the thing to the giving directory
      * @param mydirectory
      *        a parameter stating the directory in which we want to place the thing
+     * @effect the cached path of the thing is forgotten
+     *        | invalidatePath()
+     * @effect the cached depth and root of the thing are forgotten
+     *        | invalidateAncestry()
      */
     @Raw
     @Model
     protected void setDirectory(Directory mydirectory) {
         this.directory = mydirectory;
+        invalidatePath();
+        invalidateAncestry();
     }
 
 
@@ -197,19 +452,18 @@ public abstract class Thing {
 
     /**
      * removes an item from a directory and sets its own directory to null.
-     * @post after the item is removed, the items directory is sorted again
+     * @post after the item is removed, the items directory is still sorted
      * @throws FileNotWritableException
      *        this is thrown if the current directory is not writable.
      *        |!location.isWriteable()
      */
     @Model
     protected void remove(Directory dir) throws FileNotWritableException{
+        if(dir == null)
+            return;
         if(!dir.isWriteable())
             throw new FileNotWritableException(dir);
-        if(dir != null){
-            dir.getContent().remove(this);
-            dir.sortMap();
-        }
+        dir.removeItem(this);
     }
     /**
      * Checks if the name of a map already contains a filesystem.File, filesystem.Link or Map with the same name
@@ -221,26 +475,146 @@ public abstract class Thing {
      */
     @Model
     protected boolean nameNotInMap(Directory location){
-        for(int i =0; i<location.getContent().size(); i++){
-            Thing item = location.getContent().get(i);
-            if(item.getName().toLowerCase() == getName().toLowerCase())
-                return false;
-        }
-        return true;
+        return !location.containsDiskItemWithName(getName());
     }
 
+    /**********************************************************
+     * ancestry
+     **********************************************************/
+
+    /**
+     * Variable counting the moves of non-empty directories. The cached depth, root and jump of a
+     * thing made in the current generation are known to be correct.
+     */
+    private static final AtomicLong ancestryGeneration = new AtomicLong();
+
+    /**
+     * Variable registering the generation in which the depth, root and jump of this thing were
+     * last computed, or -1 if they have to be computed again.
+     */
+    private volatile long cachedAncestryGeneration = -1;
+
+    /**
+     * Variable registering the number of directories above this thing.
+     */
+    private int depth = 0;
+
+    /**
+     * Variable referencing the thing at the top of the directories above this thing, or this thing itself.
+     */
+    private Thing cachedRoot = null;
+
+    /**
+     * Variable referencing a directory above this thing, or this thing if it is a root. The jumps
+     * are chosen as in a skew-binary list, so any directory above a thing can be reached in a
+     * logarithmic number of jumps and steps up.
+     */
+    private Thing jump = null;
+
     /**
      * Returns the root filesystem.Directory of a thing. Returns itself when the directory is a root filesystem.Directory
      * @return The root filesystem.Directory
+     *         | if (getDirectory() == null) then result == this
+     *         | else result == getDirectory().getRoot()
      */
     @Basic
     public Directory getRoot(){
-        Directory nextdir = getDirectory();
-        if(nextdir == null)
-            return (Directory) this;
-        else
-            return nextdir.getRoot();
+        refreshAncestry();
+        return (Directory) cachedRoot;
+    }
+
+    /**
+     * Returns the number of directories above this thing.
+     * @return | if (getDirectory() == null) then result == 0
+     *         | else result == getDirectory().getDepth() + 1
+     */
+    public int getDepth(){
+        refreshAncestry();
+        return depth;
+    }
+
+    /**
+     * Returns the directory above this thing with the given depth.
+     * @param  depth
+     *         the depth of the directory.
+     * @pre    The depth is not negative and not larger than the depth of this thing.
+     *         | 0 <= depth && depth <= getDepth()
+     * @return the directory above this thing with the given depth, or this thing if the depth is its own depth.
+     */
+    @Model
+    Thing getAncestorAtDepth(int depth){
+        refreshAncestry();
+        Thing thing = this;
+        while(thing.depth > depth){
+            if(thing.jump.depth >= depth)
+                thing = thing.jump;
+            else
+                thing = thing.getDirectory();
+        }
+        return thing;
+    }
+
+    /**
+     * Makes sure the depth, root and jump of this thing and the directories above it are correct.
+     * The directories above are walked without recursion, so very deep trees are no problem.
+     */
+    @Model
+    private void refreshAncestry(){
+        // The generation is read before anything else, so values computed from a tree that
+        // changes in the meantime get an old generation and are computed again.
+        long generation = ancestryGeneration.get();
+        if(cachedAncestryGeneration == generation)
+            return;
+        ArrayList<Thing> stale = new ArrayList<Thing>();
+        for(Thing thing = this; thing != null && thing.cachedAncestryGeneration != generation; thing = thing.getDirectory())
+            stale.add(thing);
+        for(int i = stale.size() - 1; i >= 0; i--)
+            stale.get(i).computeAncestry(generation);
+    }
+
+    /**
+     * Computes the depth, root and jump of this thing from those of its directory.
+     * @param generation
+     *        the generation in which the computation started.
+     * @pre   The directory of this thing, if any, has a correct depth, root and jump.
+     */
+    @Model
+    private void computeAncestry(long generation){
+        Thing parent = getDirectory();
+        if(parent == null){
+            depth = 0;
+            cachedRoot = this;
+            jump = this;
+        } else {
+            depth = parent.depth + 1;
+            cachedRoot = parent.cachedRoot;
+            Thing parentJump = parent.jump;
+            if(parent.depth - parentJump.depth == parentJump.depth - parentJump.jump.depth)
+                jump = parentJump.jump;
+            else
+                jump = parent;
+        }
+        cachedAncestryGeneration = generation;
+    }
+
+    /**
+     * Forgets the depth, root and jump of this thing, after its directory changed. In concurrent
+     * mode, a new generation is started as well, as another thread may be computing them.
+     */
+    @Model
+    void invalidateAncestry(){
+        cachedAncestryGeneration = -1;
+        if(Locking.isConcurrent())
+            invalidateAllAncestry();
+    }
 
+    /**
+     * Forgets the depth, root and jump of all things, by starting a new generation.
+     * They are only computed again when they are asked for.
+     */
+    @Model
+    static void invalidateAllAncestry(){
+        ancestryGeneration.incrementAndGet();
     }
 
     /**
@@ -252,21 +626,193 @@ public abstract class Thing {
         return getRoot().getName();
     }
 
+    /**
+     * @return the current view of this thing, or null if it has none.
+     */
+    @Basic @Model
+    Snapshot getCachedSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * @param snapshot
+     *        the new view of this thing.
+     * @post  | getCachedSnapshot() == snapshot
+     */
+    @Model
+    void setCachedSnapshot(Snapshot snapshot){
+        this.snapshot = snapshot;
+    }
+
+    /**********************************************************
+     * absolute path
+     **********************************************************/
+
+    /**
+     * Variable counting the changes to the name or place of any directory. A cached path made
+     * in the current generation is known to be correct without looking at the directories above.
+     */
+    private static final AtomicLong pathGeneration = new AtomicLong();
+
+    /**
+     * A class of computed paths, together with the path of the directory they were computed
+     * from and the version of the name and place of the thing they were computed for.
+     */
+    @Immutable
+    private static final class CachedPath {
+
+        private final String path;
+        private final String parentPath;
+        private final int version;
+
+        CachedPath(String path, String parentPath, int version){
+            this.path = path;
+            this.parentPath = parentPath;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Variable counting the changes to the name or place of this thing. A cached path made for
+     * another version is never used, so a path computed while the name or place changed is
+     * computed again, even if it was stored after the change.
+     */
+    private volatile int pathVersion = 0;
+
+    /**
+     * Handle on the path version, to change it atomically in concurrent mode.
+     */
+    private static final VarHandle PATH_VERSION;
+
+    static {
+        try {
+            PATH_VERSION = MethodHandles.lookup().findVarHandle(Thing.class, "pathVersion", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Variable referencing the last computed path of this thing, or null.
+     */
+    private volatile CachedPath cachedPath = null;
+
+    /**
+     * Variable registering the generation in which the cached path was last found to be correct.
+     */
+    private volatile long cachedPathGeneration = -1;
+
     /**
      * Method to get a string of it's path.
      * @return returns the directory path  of a filesystem.Link or Map, divided by forward slashes
-     *         | String path == "/" + nextDir.getName() "/" + getName();
+     *         | String path == "/" + nextDir.getName() "/" + getPathName();
+     * @note   The path is cached. When a directory above is renamed or moved, the path is only
+     *         computed again when it is asked for, and only if the path of its directory changed.
      */
     public String getAbsolutePath(){
-        String path = "/" + getName();
-        Directory nextDir = getDirectory();
-        while (nextDir != null){
-            path = "/" + nextDir.getName() + path;
-            nextDir = nextDir.getDirectory();
+        // The generation is read before anything else, so paths computed from a tree that
+        // changes in the meantime get an old generation and are computed again.
+        long generation = pathGeneration.get();
+        String path = currentPath(generation);
+        if(path != null)
+            return path;
+        ArrayList<Thing> stale = new ArrayList<Thing>();
+        path = "";
+        for(Thing thing = this; thing != null; thing = thing.getDirectory()){
+            String knownPath = thing.currentPath(generation);
+            if(knownPath != null){
+                path = knownPath;
+                break;
+            }
+            stale.add(thing);
         }
+        for(int i = stale.size() - 1; i >= 0; i--)
+            path = stale.get(i).refreshPath(generation, path);
         return path;
     }
 
+    /**
+     * @return the cached path of this thing if it was found to be correct in the given generation,
+     *         null otherwise.
+     */
+    @Model
+    private String currentPath(long generation){
+        if(cachedPathGeneration != generation)
+            return null;
+        CachedPath cached = cachedPath;
+        return (cached != null && cached.version == pathVersion) ? cached.path : null;
+    }
+
+    /**
+     * Computes the path of this thing again if the path of its directory changed.
+     * @param generation
+     *        the generation in which the computation started.
+     * @param parentPath
+     *        the current path of the directory of this thing, or an empty string for a root.
+     * @return the path of this thing.
+     */
+    @Model
+    private String refreshPath(long generation, String parentPath){
+        // The version is read before the name, so a path made from a name that changes in the
+        // meantime is stored with an old version.
+        int version = pathVersion;
+        CachedPath cached = cachedPath;
+        if(cached == null || cached.version != version || cached.parentPath != parentPath){
+            cached = new CachedPath(parentPath + "/" + getPathName(), parentPath, version);
+            cachedPath = cached;
+        }
+        cachedPathGeneration = generation;
+        return cached.path;
+    }
+
+    /**
+     * Forgets the cached path of this thing, after its name or directory changed. In concurrent
+     * mode, a new generation is started as well, as another thread may be computing the path.
+     * @post  | new.cachedPath == null
+     * @post  | new.pathVersion != pathVersion
+     */
+    @Model
+    void invalidatePath(){
+        PATH_VERSION.getAndAdd(this, 1);
+        cachedPath = null;
+        cachedPathGeneration = -1;
+        if(Locking.isConcurrent())
+            invalidateAllPaths();
+    }
+
+    /**
+     * Forgets the cached paths of all things, by starting a new generation. The paths are only
+     * computed again when they are asked for.
+     */
+    @Model
+    static void invalidateAllPaths(){
+        pathGeneration.incrementAndGet();
+    }
+
+    /**
+     * @return the name of this thing as it is used in its path.
+     */
+    @Model
+    String getPathName(){
+        return getName();
+    }
+
+    /**
+     * @return the amount of bytes this thing occupies on disk, which is 0 unless it holds data.
+     */
+    @Model
+    int getDiskUsage(){
+        return 0;
+    }
+
+    /**
+     * @return the number of items this thing stands for in its directory, which is 1 unless it holds items.
+     */
+    @Model
+    int getItemCount(){
+        return 1;
+    }
+
     /**
      * checks if the location is not the current location or a null reference
      *
@@ -284,15 +830,26 @@ public abstract class Thing {
      **********************************************************/
 
     /**
-     * Variable referencing the time of creation.
+     * Variable referencing the time of creation, in milliseconds since the epoch.
      */
-    private final Date creationTime = new Date();
+    private final long creationTime;
 
     /**
      * Return the time at which this file was created.
+     *
+     * @return  A new date for the creation time.
+     *        | result.getTime() == getCreationMillis()
      */
-    @Basic @Immutable
+    @Immutable
     public Date getCreationTime() {
+        return new Date(creationTime);
+    }
+
+    /**
+     * Return the time at which this file was created, in milliseconds since the epoch.
+     */
+    @Basic @Immutable
+    public long getCreationMillis() {
         return creationTime;
     }
 
@@ -319,21 +876,51 @@ public abstract class Thing {
      **********************************************************/
 
     /**
-     * Variable referencing the time of the last modification,
-     * possibly null.
+     * Value of the modification time of a thing that has not been modified yet.
      */
-    private Date modificationTime = null;
+    static final long NOT_MODIFIED = Long.MIN_VALUE;
+
+    /**
+     * Variable referencing the time of the last modification, in milliseconds
+     * since the epoch, or NOT_MODIFIED.
+     */
+    private long modificationTime = NOT_MODIFIED;
 
     /**
      * Return the time at which this thing was last modified, that is
      * at which the name or size was last changed. If this thing has
      * not yet been modified after construction, null is returned.
+     *
+     * @return  A new date for the modification time, or null.
+     *        | if (!isModified()) then result == null
+     *        | else result.getTime() == getModificationMillis()
      */
-    @Raw @Basic
+    @Raw
     public Date getModificationTime() {
+        if(modificationTime == NOT_MODIFIED)
+            return null;
+        return new Date(modificationTime);
+    }
+
+    /**
+     * Return the time at which this thing was last modified, in milliseconds since the epoch.
+     *
+     * @pre     This thing has been modified.
+     *        | isModified()
+     */
+    @Raw @Basic
+    public long getModificationMillis() {
         return modificationTime;
     }
 
+    /**
+     * Return whether this thing has been modified after construction.
+     */
+    @Raw
+    public boolean isModified() {
+        return modificationTime != NOT_MODIFIED;
+    }
+
     /**
      * Check whether this file can have the given date as modification time.
      *
@@ -343,15 +930,29 @@ public abstract class Thing {
      * 			or if the given date lies between the creation time and the
      * 			current time.
      *         | result == (date == null) ||
-     *         | ( (date.getTime() >= getCreationTime().getTime()) &&
-     *         |   (date.getTime() <= System.currentTimeMillis())     )
+     *         |   canHaveAsModificationMillis(date.getTime())
      */
     @Raw
     @Model
     protected boolean canHaveAsModificationTime(Date date) {
-        return (date == null) ||
-                ( (date.getTime() >= getCreationTime().getTime()) &&
-                        (date.getTime() <= System.currentTimeMillis()) );
+        return (date == null) || canHaveAsModificationMillis(date.getTime());
+    }
+
+    /**
+     * Check whether this file can have the given time as modification time.
+     *
+     * @param	millis
+     * 			The time to check, in milliseconds since the epoch.
+     * @return 	True if and only if the given time lies between the creation time and the
+     * 			current time.
+     *         | result ==
+     *         | ( (millis >= getCreationMillis()) &&
+     *         |   (millis <= System.currentTimeMillis())     )
+     */
+    @Raw
+    @Model
+    protected boolean canHaveAsModificationMillis(long millis) {
+        return (millis >= creationTime) && (millis <= System.currentTimeMillis());
     }
 
     /**
@@ -369,7 +970,20 @@ public abstract class Thing {
      */
     @Model
     protected void setModificationTime() {
-        modificationTime = new Date();
+        modificationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Set the modification time of this thing to the given time, so several things
+     * changed together get the same time.
+     *
+     * @param  millis
+     *         the time of the change, in milliseconds since the epoch.
+     * @post   | new.getModificationMillis() == millis
+     */
+    @Model
+    void setModificationMillis(long millis) {
+        modificationTime = millis;
     }
 
     /**
@@ -397,11 +1011,11 @@ public abstract class Thing {
     @Raw
     public boolean hasOverlappingUsePeriod(Thing other) {
         if (other == null) return false;
-        if(getModificationTime() == null || other.getModificationTime() == null) return false;
-        return !( ( ! getCreationTime().after(other.getCreationTime()) &&
-                ! getModificationTime().after(other.getCreationTime()) ) ||
-                 (!other.getCreationTime().after(getCreationTime()) &&
-                        !other.getModificationTime().after(getCreationTime()) ));
+        if(!isModified() || !other.isModified()) return false;
+        return !( ( creationTime <= other.creationTime &&
+                modificationTime <= other.creationTime ) ||
+                 ( other.creationTime <= creationTime &&
+                        other.modificationTime <= creationTime ));
     }
 
     /**
@@ -411,14 +1025,16 @@ public abstract class Thing {
      *        the parent map we want to check it's children of
      *
      * @return returns true if the parent directory has this as one of it's children.
+     *         | if (getDirectory() == map) then result == true
+     *         | else if (getDirectory() == null) then result == false
+     *         | else result == getDirectory().isDirectOrIndirectChildOf(map)
      */
     public boolean isDirectOrIndirectChildOf(Directory map){
-        if(this.getDirectory() == map)
+        if(map == null || this.getDirectory() == map)
             return true;
-        else if (this.getDirectory() == null)
+        int mapDepth = map.getDepth();
+        if(getDepth() <= mapDepth)
             return false;
-
-        Directory nextDir = this.getDirectory();
-        return nextDir.isDirectOrIndirectChildOf(map);
+        return getAncestorAtDepth(mapDepth) == map;
     }
 }
\ No newline at end of file
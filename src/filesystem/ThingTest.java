@@ -77,7 +77,7 @@ public class ThingTest {
         // check getters
         assertEquals(someFile.getDirectory(), someDirectory);
         assertEquals(someFile.getName(),"someFile");
-        //assertEquals(someFile, someDirectory.getItem("someFile"));
+        assertEquals(someFile, someDirectory.getItem("someFile"));
         // check if moving items to a directory works and puts them in alphabetical order.
         someFile3.move(someDirectory2);
         assertEquals(someDirectory2.getNbItems(), 1);
@@ -199,6 +199,55 @@ public class ThingTest {
         assertTrue(newFile1.hasOverlappingUsePeriod(newFile3));
     }
 
+    @Test
+    public void isValidNameTest() {
+        // files take letters, digits, underscores, hyphens and dots
+        assertTrue(someFile.isValidName("aZ_09-x.y"));
+        assertTrue(someFile.isValidName("."));
+        // directories take the same characters except the dot
+        assertTrue(someDirectory.isValidName("aZ_09-x"));
+        assertFalse(someDirectory.isValidName("x.y"));
+        for (String name : new String[]{null, "", " ", "a b", "a*", "a/b", "a@", "caf\u00e9",
+                "\u007f", "\u0080", "\u00ff", "\u0100", "\u0130", "\u212a", "\uff21"}) {
+            assertFalse(someFile.isValidName(name));
+            assertFalse(someDirectory.isValidName(name));
+        }
+        // the character table accepts exactly what the old expressions accepted
+        for (char c = 0; c < 600; c++) {
+            String name = String.valueOf(c);
+            assertEquals(name.matches("[a-zA-Z_0-9.-]+"), Thing.hasValidCharacters(name, true), "char " + (int) c);
+            assertEquals(name.matches("[a-zA-Z_0-9-]+"), Thing.hasValidCharacters(name, false), "char " + (int) c);
+        }
+    }
+
+    @Test
+    public void notModifiedTest() {
+        File early = new File("early", 0, Type.TXT, 1000L);
+        File late = new File("late", 0, Type.TXT, 5000L);
+        // a thing that was never modified has no modification time and no use period
+        assertFalse(early.isModified());
+        assertNull(early.getModificationTime());
+        assertFalse(early.hasOverlappingUsePeriod(late));
+        assertFalse(early.hasOverlappingUsePeriod(null));
+        early.setModificationMillis(2000L);
+        assertEquals(new Date(2000L), early.getModificationTime());
+        assertFalse(early.hasOverlappingUsePeriod(late));
+        assertFalse(late.hasOverlappingUsePeriod(early));
+        // once both are modified the periods are compared
+        late.setModificationMillis(6000L);
+        assertFalse(early.hasOverlappingUsePeriod(late));
+        assertFalse(late.hasOverlappingUsePeriod(early));
+        early.setModificationMillis(5500L);
+        assertTrue(early.hasOverlappingUsePeriod(late));
+        assertTrue(late.hasOverlappingUsePeriod(early));
+        // the sentinel reads back as not modified
+        early.setModificationMillis(Thing.NOT_MODIFIED);
+        assertFalse(early.isModified());
+        assertNull(early.getModificationTime());
+        assertFalse(early.hasOverlappingUsePeriod(late));
+        assertFalse(late.hasOverlappingUsePeriod(early));
+    }
+
     @Test
     public void MakeRootTest() {
         Directory someDirectory3 = new Directory(someDirectory, "someDirectory2");
@@ -212,6 +261,14 @@ public class ThingTest {
         assertEquals(someDirectory2.getRoot(), someDirectory);
         assertEquals(someDirectory3.getRoot(), someDirectory);
         assertEquals(someDirectory.getRoot(), someDirectory);
+        // depth and root follow moves of the directories above
+        assertEquals(2, someDirectory3.getDepth());
+        someDirectory2.move(someDirectory1);
+        assertEquals(3, someDirectory3.getDepth());
+        someDirectory2.makeRoot();
+        assertEquals(1, someDirectory3.getDepth());
+        assertEquals(someDirectory2, someDirectory3.getRoot());
+        assertFalse(someDirectory3.isDirectOrIndirectChildOf(someDirectory));
     }
 
     @Test
@@ -233,11 +290,841 @@ public class ThingTest {
         assertEquals(50, someDirectory.getTotalDiskUsage());
     }
 
+    @Test
+    public void sortedContentTest(){
+        // items are placed in order when they are made, ignoring capital letters
+        File someFile5 = new File(someDirectory2, "B", Type.TXT);
+        File someFile6 = new File(someDirectory2, "a", Type.TXT);
+        File someFile7 = new File(someDirectory2, "C", Type.TXT);
+        assertEquals(someFile6, someDirectory2.getItemAt(1));
+        assertEquals(someFile5, someDirectory2.getItemAt(2));
+        assertEquals(someFile7, someDirectory2.getItemAt(3));
+        // renaming an item puts it in its new place
+        someFile6.changeName("d");
+        assertEquals(someFile5, someDirectory2.getItemAt(1));
+        assertEquals(someFile6, someDirectory2.getItemAt(3));
+        assertEquals(3, someDirectory2.getIndexOf(someFile6));
+        // removing an item keeps the order
+        someFile7.terminate();
+        assertEquals(someFile6, someDirectory2.getItemAt(2));
+    }
+
+    @Test
+    public void getItemTest(){
+        // lookups ignore capital letters
+        assertEquals(someFile2, someDirectory.getItem("A"));
+        assertEquals(null, someDirectory.getItem("notThere"));
+        // the lookup follows renames and moves
+        someFile2.changeName("renamed");
+        assertEquals(null, someDirectory.getItem("a"));
+        assertEquals(someFile2, someDirectory.getItem("RENAMED"));
+        someFile2.move(someDirectory2);
+        assertFalse(someDirectory.containsDiskItemWithName("renamed"));
+        assertEquals(someFile2, someDirectory2.getItem("renamed"));
+        // moving to a directory with an item of the same name is refused
+        File someFile5 = new File(someDirectory, "Renamed", Type.TXT);
+        assertThrows(NameNotAvailableException.class,
+                () -> {
+                    someFile5.move(someDirectory2);
+                });
+    }
+
+    @Test
+    public void nameKeyTest(){
+        // the cached key follows renames
+        assertEquals("a", someFile2.getNameKey());
+        someFile2.changeName("Zeta");
+        assertEquals("zeta", someFile2.getNameKey());
+        assertEquals(someFile2, someDirectory.getItem("zETA"));
+        // items with mixed capital letters are ordered by their keys, also after a rename
+        File alpha = new File(someDirectory2, "ALPHA", Type.TXT);
+        File beta = new File(someDirectory2, "beta", Type.TXT);
+        File gamma = new File(someDirectory2, "Gamma", Type.TXT);
+        assertEquals(java.util.List.of(alpha, beta, gamma), someDirectory2.getContent());
+        beta.changeName("DELTA");
+        assertEquals("delta", beta.getNameKey());
+        assertEquals(java.util.List.of(alpha, beta, gamma), someDirectory2.getContent());
+        gamma.changeName("aardvark");
+        assertEquals(java.util.List.of(gamma, alpha, beta), someDirectory2.getContent());
+        assertEquals(gamma, someDirectory2.getItem("AARDVARK"));
+        assertNull(someDirectory2.getItem("gamma"));
+    }
+
+    @Test
+    public void looseFileTest(){
+        File loose = new File(null, "Loose", 5, true, Type.TXT);
+        File unplaced = new File("unplaced", 3, Type.PDF, System.currentTimeMillis());
+        assertNull(loose.getDirectory());
+        assertNull(unplaced.getDirectory());
+        // a file without a directory moves in and takes its place in the ordering
+        File kilo = new File(someDirectory2, "kilo", Type.TXT);
+        File mike = new File(someDirectory2, "MIKE", Type.TXT);
+        loose.move(someDirectory2);
+        unplaced.move(someDirectory2);
+        assertEquals(someDirectory2, loose.getDirectory());
+        assertEquals(java.util.List.of(kilo, loose, mike, unplaced), someDirectory2.getContent());
+        assertEquals(loose, someDirectory2.getItem("LOOSE"));
+        assertEquals(4, someDirectory2.getNbItems());
+        // and moves on like any other file
+        loose.move(someDirectory);
+        assertEquals(java.util.List.of(kilo, mike, unplaced), someDirectory2.getContent());
+        assertEquals(loose, someDirectory.getItem("loose"));
+    }
+
+    @Test
+    public void cachedDiskUsageTest(){
+        Directory.setCheckingTotals(true);
+        try {
+            File someFile5 = new File(someDirectory2, "someFile5", 40, true, Type.PDF);
+            assertEquals(40, someDirectory2.getTotalDiskUsage());
+            assertEquals(40, someDirectory.getTotalDiskUsage());
+            someFile5.shorten(10);
+            someFile2.enlarge(5);
+            assertEquals(35, someDirectory.getTotalDiskUsage());
+            someDirectory2.move(someDirectory1);
+            assertEquals(30, someDirectory1.getTotalDiskUsage());
+            assertEquals(35, someDirectory.getTotalDiskUsage());
+            someFile5.terminate();
+            assertEquals(0, someDirectory1.getTotalDiskUsage());
+            assertEquals(5, someDirectory.getTotalDiskUsage());
+        } finally {
+            Directory.setCheckingTotals(false);
+        }
+    }
+
+    @Test
+    public void getTotalNbItemsTest(){
+        Directory.setCheckingTotals(true);
+        try {
+            Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+            new File(someDirectory3, "deepFile", Type.TXT);
+            assertEquals(2, someDirectory2.getTotalNbItems());
+            assertEquals(11, someDirectory.getTotalNbItems());
+            someDirectory2.move(someDirectory1);
+            assertEquals(3, someDirectory1.getTotalNbItems());
+            assertEquals(11, someDirectory.getTotalNbItems());
+            someDirectory3.makeRoot();
+            assertEquals(1, someDirectory1.getTotalNbItems());
+            assertEquals(9, someDirectory.getTotalNbItems());
+        } finally {
+            Directory.setCheckingTotals(false);
+        }
+    }
+
+    @Test
+    public void subtreeStatisticsTest(){
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        new File(someDirectory3, "deepFile", 30, true, Type.TXT);
+        someFile.enlarge(10);
+        SubtreeStatistics statistics = SubtreeStatistics.of(someDirectory);
+        assertEquals(someDirectory.getTotalDiskUsage(), statistics.getTotalDiskUsage());
+        assertEquals(someDirectory.getTotalNbItems(), statistics.getNbItems());
+        assertEquals(5, statistics.getNbFiles());
+        assertEquals(4, statistics.getNbDirectories());
+        assertEquals(2, statistics.getNbLinks());
+        assertEquals(3, statistics.getMaxDepth());
+        assertEquals(4, statistics.getNbFilesOfType(Type.JAVA));
+        assertEquals(30, statistics.getDiskUsageOfType(Type.TXT));
+    }
+
+    @Test
+    public void resolveTest(){
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        File someFile5 = new File(someDirectory3, "some.File", Type.TXT);
+        // absolute paths, as given by getAbsolutePath, ignoring capital letters
+        assertEquals(someFile5, someDirectory1.resolve(someFile5.getAbsolutePath()));
+        assertEquals(someFile5, someDirectory.resolve("/NEW_FILE/someDirectory2/someDirectory3/some.file.txt"));
+        assertEquals(someDirectory3, someDirectory.resolve("/new_file/someDirectory2/someDirectory3/"));
+        assertEquals(someDirectory, someDirectory3.resolve("/new_file"));
+        // relative paths
+        assertEquals(someFile, someDirectory.resolve("someFile.java"));
+        assertEquals(someFile5, someDirectory2.resolve("./someDirectory3/some.File.txt"));
+        assertEquals(someLink, someDirectory3.resolve("../../someLink"));
+        // the extension must match the type of the file
+        assertEquals(null, someDirectory.resolve("someFile.pdf"));
+        assertEquals(null, someDirectory.resolve("someFile"));
+        assertEquals(null, someDirectory.resolve("/other/someFile.java"));
+        assertEquals(null, someDirectory.resolve("someFile.java/a.java"));
+        // batches give the same results
+        Thing[] things = someDirectory.resolveAll("/new_file/someDirectory2/someDirectory3/some.File.txt",
+                "someFile.java", "/new_file/someDirectory2/someDirectory3", "/new_file/someDirectory2/x",
+                "/new_file/someDirectory2/someDirectory3/..", "/new_file/a.java");
+        assertEquals(someFile5, things[0]);
+        assertEquals(someFile, things[1]);
+        assertEquals(someDirectory3, things[2]);
+        assertEquals(null, things[3]);
+        assertEquals(someDirectory2, things[4]);
+        assertEquals(someFile2, things[5]);
+    }
+
+    @Test
+    public void snapshotTest() throws Exception {
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        Directory someDirectory5 = new Directory(someDirectory, "someDirectory5");
+        File someFile5 = new File(someDirectory3, "someFile5", 100, true, Type.TXT);
+        Snapshot before = someDirectory.getSnapshot();
+        assertSame(before, someDirectory.getSnapshot());
+        assertEquals(someDirectory.getTotalDiskUsage(), before.getTotalDiskUsage());
+        assertEquals(someDirectory.getTotalNbItems(), before.getTotalNbItems());
+        assertEquals(someDirectory.getNbItems(), before.getNbItems());
+        Snapshot file = before.getItem("SOMEDIRECTORY2").getItem("someDirectory3").getItem("somefile5");
+        assertTrue(file.isFile());
+        assertEquals(100, file.getTotalDiskUsage());
+        assertTrue(before.getItem(someLink.getName()).isLink());
+        // later changes do not show in the old view
+        someFile5.enlarge(20);
+        someFile5.changeName("renamed");
+        someDirectory3.move(someDirectory5);
+        Snapshot after = someDirectory.getSnapshot();
+        assertEquals(someDirectory.getTotalDiskUsage(), before.getTotalDiskUsage() + 20);
+        assertEquals(100, before.getItem("someDirectory2").getItem("someDirectory3").getItem("someFile5").getTotalDiskUsage());
+        assertNull(before.getItem("someDirectory5").getItem("someDirectory3"));
+        assertEquals(120, after.getItem("someDirectory5").getItem("someDirectory3").getItem("renamed").getTotalDiskUsage());
+        assertEquals(someDirectory.getTotalDiskUsage(), after.getTotalDiskUsage());
+        // unchanged submaps share their view
+        Directory someDirectory4 = new Directory(someDirectory2, "someDirectory4");
+        assertSame(after.getItem("someDirectory5"), someDirectory.getSnapshot().getItem("someDirectory5"));
+        assertEquals(0, someDirectory.getSnapshot().getItem("someDirectory2").getItem("someDirectory4").getNbItems());
+        assertSame(before.getItem("a"), someDirectory.getSnapshot().getItem("a"));
+        // a tree without views gets them when it is moved in
+        Directory outside = new Directory(new Directory("top"), "outside");
+        new File(new Directory(outside, "inner"), "deep", 7, true, Type.TXT);
+        outside.move(someDirectory2);
+        assertEquals(7, someDirectory.getSnapshot().getItem("someDirectory2").getItem("outside").getTotalDiskUsage());
+        // writers publish their views while other threads change the tree or another tree
+        Directory other = new Directory("other");
+        Snapshot otherBefore = other.getSnapshot();
+        Directory.setConcurrent(true);
+        try {
+            Thread[] threads = new Thread[4];
+            for(int t = 0; t < threads.length; t++){
+                Directory own = new Directory((t == 3) ? other : someDirectory2, "snapshot" + t);
+                threads[t] = new Thread(() -> {
+                    for(int i = 0; i < 100; i++)
+                        new File(own, "file" + i, 3, true, Type.TXT).enlarge(2);
+                });
+                threads[t].start();
+            }
+            for(Thread thread : threads)
+                thread.join();
+        } finally {
+            Directory.setConcurrent(false);
+        }
+        Snapshot last = someDirectory.getSnapshot();
+        assertEquals(someDirectory.getTotalDiskUsage(), last.getTotalDiskUsage());
+        assertEquals(someDirectory.getTotalNbItems(), last.getTotalNbItems());
+        assertEquals(100, last.getItem("someDirectory2").getItem("snapshot2").getNbItems());
+        assertNull(last.getItem("someDirectory2").getItem("snapshot3"));
+        assertEquals(0, otherBefore.getNbItems());
+        assertEquals(500, other.getSnapshot().getTotalDiskUsage());
+        assertEquals(101, other.getSnapshot().getTotalNbItems());
+    }
+
+    @Test
+    public void batchTest(){
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        Directory someDirectory5 = new Directory(someDirectory, "someDirectory5");
+        File someFile5 = new File(someDirectory3, "someFile5", 100, true, Type.TXT);
+        int diskUsage = someDirectory.getTotalDiskUsage();
+        int nbItems = someDirectory.getTotalNbItems();
+        // a failing batch changes nothing
+        Batch failing = new Batch();
+        File created = failing.createFile(someDirectory5, "created", 10, true, Type.PDF);
+        failing.move(someFile5, someDirectory5);
+        failing.move(someDirectory2, someDirectory3);
+        assertThrows(LoopedDirectoryException.class, failing::commit);
+        assertTrue(failing.isFinished());
+        assertTrue(created.isTerminated);
+        assertEquals(someDirectory3, someFile5.getDirectory());
+        assertEquals(0, someDirectory5.getNbItems());
+        Batch taken = new Batch();
+        taken.createFile(someDirectory5, "someFile5", Type.TXT);
+        taken.move(someFile5, someDirectory5);
+        assertThrows(NameNotAvailableException.class, taken::commit);
+        Batch notEmpty = new Batch();
+        notEmpty.delete(someDirectory3);
+        assertThrows(DirectoryNotEmptyException.class, notEmpty::commit);
+        assertEquals(nbItems, someDirectory.getTotalNbItems());
+        // a batch that can be made changes everything at once
+        Batch batch = new Batch();
+        File[] files = new File[5];
+        for(int i = 0; i < files.length; i++)
+            files[i] = batch.createFile(someDirectory5, "file" + (4 - i), 10, true, Type.TXT);
+        batch.move(someFile5, someDirectory5);
+        batch.rename(someDirectory5, "renamed");
+        batch.delete(someDirectory3);
+        batch.move(someDirectory2, someDirectory5);
+        assertThrows(IllegalArgumentException.class, () -> batch.delete(someFile5));
+        batch.commit();
+        assertThrows(IllegalStateException.class, batch::commit);
+        assertEquals(7, someDirectory5.getNbItems());
+        assertEquals(files[4], someDirectory5.getItemAt(1));
+        assertEquals(someDirectory2, someDirectory5.getItemAt(6));
+        assertEquals(someFile5, someDirectory5.getItemAt(7));
+        assertEquals(someDirectory5, someDirectory.getItem("renamed"));
+        assertTrue(someDirectory3.isTerminated);
+        assertEquals(0, someDirectory2.getNbItems());
+        assertEquals("/new_file/renamed/someFile5.txt", someFile5.getAbsolutePath());
+        assertEquals(diskUsage + 50, someDirectory.getTotalDiskUsage());
+        assertEquals(nbItems + 4, someDirectory.getTotalNbItems());
+        assertEquals(someDirectory.recountTotalNbItems(), someDirectory.getTotalNbItems());
+        assertEquals(someDirectory.recountTotalDiskUsage(), someDirectory.getTotalDiskUsage());
+        // a clash with an item sharing the key of the thing itself is found
+        Directory first = (Directory) someDirectory.getItem("someDirectory1");
+        assertNotSame(someDirectory1, first);
+        Batch clash = new Batch();
+        clash.rename(first, "SomeDirectory1");
+        assertThrows(NameNotAvailableException.class, clash::commit);
+        assertEquals("someDirectory1", first.getName());
+        // a root can not be moved, and the batch changes nothing
+        Batch rootMove = new Batch();
+        Directory other = new Directory("other");
+        rootMove.move(other, someDirectory5);
+        assertThrows(IllegalArgumentException.class, rootMove::commit);
+        assertNull(other.getDirectory());
+        assertEquals(7, someDirectory5.getNbItems());
+    }
+
+    @Test
+    public void importerTest() throws Exception {
+        java.nio.file.Path host = java.nio.file.Files.createTempDirectory("imported");
+        try {
+            java.nio.file.Path sub = java.nio.file.Files.createDirectories(host.resolve("sub").resolve("deeper"));
+            java.nio.file.Files.write(host.resolve("notes.txt"), new byte[12]);
+            java.nio.file.Files.write(host.resolve("Main.java"), new byte[30]);
+            java.nio.file.Files.write(host.resolve("MAIN.pdf"), new byte[30]);
+            java.nio.file.Files.write(host.resolve("archive.zip"), new byte[5]);
+            java.nio.file.Files.write(sub.resolve("paper.v2.pdf"), new byte[100]);
+            java.nio.file.Files.createDirectory(host.resolve("bad name"));
+            Importer result = Importer.importTree(host, someDirectory1);
+            Directory imported = result.getDirectory();
+            assertEquals(someDirectory1, imported.getDirectory());
+            assertEquals(3, result.getNbFiles());
+            assertEquals(3, result.getNbDirectories());
+            assertEquals(3, result.getNbSkipped());
+            assertEquals(3, imported.getNbItems());
+            assertEquals(Type.TXT, ((File) imported.getItem("notes")).getFileType());
+            assertEquals(12, ((File) imported.getItem("notes")).getSize());
+            File paper = (File) imported.resolve("sub/deeper/paper.v2.pdf");
+            assertEquals(100, paper.getSize());
+            assertEquals(imported.getAbsolutePath() + "/sub/deeper/paper.v2.pdf", paper.getAbsolutePath());
+            assertEquals(142, imported.getTotalDiskUsage());
+            assertEquals(imported.recountTotalNbItems(), imported.getTotalNbItems());
+            assertEquals(someDirectory.recountTotalDiskUsage(), someDirectory.getTotalDiskUsage());
+            assertThrows(NameNotAvailableException.class, () -> Importer.importTree(host, someDirectory1));
+            Directory gone = new Directory(someDirectory, "gone");
+            gone.terminate();
+            assertThrows(IllegalArgumentException.class, () -> Importer.importTree(host, gone));
+            assertEquals(0, gone.getNbItems());
+            // totals that would not fit are not imported
+            java.nio.file.Path large = java.nio.file.Files.createDirectory(host.resolve("large"));
+            try (java.io.RandomAccessFile huge = new java.io.RandomAccessFile(large.resolve("huge.txt").toFile(), "rw")) {
+                huge.setLength(3L << 30);
+            }
+            int nbItems = someDirectory1.getNbItems();
+            assertThrows(IllegalArgumentException.class, () -> Importer.importTree(large, someDirectory1));
+            assertEquals(nbItems, someDirectory1.getNbItems());
+            assertEquals(Integer.MAX_VALUE, Importer.importTree(large, null).getDirectory().getTotalDiskUsage());
+            try (java.io.RandomAccessFile other = new java.io.RandomAccessFile(large.resolve("other.txt").toFile(), "rw")) {
+                other.setLength(1);
+            }
+            assertThrows(IllegalArgumentException.class, () -> Importer.importTree(large, null));
+        } finally {
+            try (java.util.stream.Stream<java.nio.file.Path> walk = java.nio.file.Files.walk(host)) {
+                walk.sorted(java.util.Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void treeImageTest() throws Exception {
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        File someFile5 = new File(someDirectory3, "some.File5", 100, false, Type.PDF);
+        someDirectory3.setWritable(false);
+        someFile5.setModificationMillis(someFile5.getCreationMillis() + 5);
+        Link someLink2 = new Link(someDirectory2, "someLink2", someDirectory3);
+        File deleted = new File(someDirectory2, "deleted", Type.TXT);
+        Link someLink3 = new Link(someDirectory2, "someLink3", deleted);
+        deleted.terminate();
+        java.nio.file.Path image = java.nio.file.Files.createTempFile("tree", ".image");
+        try {
+            TreeImage.write(someDirectory, image);
+            Directory read = TreeImage.read(image);
+            assertNull(read.getDirectory());
+            assertEquals(someDirectory.getName(), read.getName());
+            assertEquals(someDirectory.getTotalNbItems(), read.getTotalNbItems());
+            assertEquals(someDirectory.getTotalDiskUsage(), read.getTotalDiskUsage());
+            assertEquals(read.recountTotalDiskUsage(), read.getTotalDiskUsage());
+            for(int i = 1; i <= someDirectory.getNbItems(); i++)
+                assertEquals(someDirectory.getItemAt(i).getName(), read.getItemAt(i).getName());
+            File file = (File) read.resolve("someDirectory2/someDirectory3/some.File5.pdf");
+            assertEquals(100, file.getSize());
+            assertFalse(file.isWritable());
+            assertEquals(someFile5.getCreationMillis(), file.getCreationMillis());
+            assertEquals(someFile5.getModificationMillis(), file.getModificationMillis());
+            assertFalse(file.getDirectory().isWritable());
+            assertEquals(someFile5.getAbsolutePath(), file.getAbsolutePath());
+            Link link = (Link) read.resolve("someDirectory2/someLink2");
+            assertEquals(file.getDirectory(), link.getReference());
+            assertTrue(link.getState());
+            assertFalse(((Link) read.resolve(someLink3.getAbsolutePath())).getState());
+            // links to things outside the directory can not be written
+            new Link(someDirectory2, "outside", someFile);
+            assertThrows(IllegalArgumentException.class, () -> TreeImage.write(someDirectory2, image));
+            java.nio.file.Files.write(image, new byte[]{1, 2, 3});
+            assertThrows(java.io.UncheckedIOException.class, () -> TreeImage.read(image));
+        } finally {
+            java.nio.file.Files.delete(image);
+        }
+    }
+
+    @Test
+    public void linkIndexTest() {
+        Link someLink2 = new Link(someDirectory2, "someLink2", someFile);
+        assertEquals(2, someFile.getNbLinks());
+        assertTrue(someFile.getLinks().contains(someLink));
+        assertTrue(someFile.getLinks().contains(someLink2));
+        assertEquals(java.util.List.of(someLink1), someDirectory.getLinks());
+        // a link that can not be placed is not registered
+        someDirectory2.setWritable(false);
+        assertThrows(FileNotWritableException.class, () -> new Link(someDirectory2, "someLink3", someFile));
+        someDirectory2.setWritable(true);
+        assertEquals(2, someFile.getNbLinks());
+        someLink2.terminate();
+        assertEquals(java.util.List.of(someLink), someFile.getLinks());
+        Batch batch = new Batch();
+        batch.delete(someFile);
+        batch.commit();
+        assertFalse(someLink.getState());
+        assertEquals(0, someFile.getNbLinks());
+        assertThrows(ReferenceDeletedException.class, () -> new Link(someDirectory2, "someLink3", someFile));
+        // the files of a batch that fails are terminated like any other thing
+        Batch failing = new Batch();
+        File created = failing.createFile(someDirectory2, "created", Type.TXT);
+        Link toCreated = new Link(someDirectory, "toCreated", created);
+        someDirectory2.setWritable(false);
+        assertThrows(FileNotWritableException.class, failing::commit);
+        someDirectory2.setWritable(true);
+        assertTrue(created.isTerminated);
+        assertFalse(toCreated.getState());
+        assertEquals(0, created.getNbLinks());
+    }
+
+    @Test
+    public void subscriptionTest() {
+        java.util.List<ChangeEvent> events = new java.util.ArrayList<ChangeEvent>();
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        try (Subscription subscription = someDirectory2.subscribe(events::addAll, 100, Runnable::run)) {
+            File someFile5 = new File(someDirectory3, "someFile5", Type.TXT);
+            someFile5.enlarge(10);
+            someFile5.changeName("someFile6");
+            someFile5.move(someDirectory);
+            new File(someDirectory, "outside", Type.TXT);
+            someDirectory3.terminate();
+            assertEquals(java.util.List.of(ChangeEvent.Kind.CREATED, ChangeEvent.Kind.RESIZED, ChangeEvent.Kind.RENAMED,
+                    ChangeEvent.Kind.MOVED, ChangeEvent.Kind.TERMINATED),
+                    events.stream().map(ChangeEvent::getKind).collect(java.util.stream.Collectors.toList()));
+            assertEquals(10, events.get(1).getSize());
+            assertEquals("someFile5", events.get(2).getOldName());
+            assertEquals(someDirectory3, events.get(3).getOldDirectory());
+            assertEquals(someFile5.getAbsolutePath(), events.get(3).getPath());
+            assertEquals(someDirectory2.getAbsolutePath() + "/someDirectory3", events.get(4).getPath());
+            assertEquals(5, subscription.getNbDelivered());
+        }
+        new File(someDirectory2, "unobserved", Type.TXT);
+        assertEquals(5, events.size());
+        // a slow consumer gets coalesced resizes, and one event when its queue is full
+        java.util.List<Runnable> deliveries = new java.util.ArrayList<Runnable>();
+        events.clear();
+        try (Subscription subscription = someDirectory2.subscribe(events::addAll, 3, deliveries::add)) {
+            File someFile5 = new File(someDirectory2, "someFile5", Type.TXT);
+            for(int i = 0; i < 10; i++)
+                someFile5.enlarge(1);
+            deliveries.remove(0).run();
+            assertEquals(2, events.size());
+            assertEquals(10, events.get(1).getSize());
+            for(int i = 0; i < 5; i++)
+                new File(someDirectory2, "file" + i, Type.TXT);
+            deliveries.remove(0).run();
+            assertEquals(ChangeEvent.Kind.OVERFLOWED, events.get(2).getKind());
+            assertEquals(1, subscription.getNbOverflows());
+            assertTrue(deliveries.isEmpty());
+        }
+        // an executor that refuses the delivery overflows the queue, but does not fail the change
+        events.clear();
+        boolean[] refuse = {true};
+        try (Subscription subscription = someDirectory2.subscribe(events::addAll, 100, delivery -> {
+            if(refuse[0])
+                throw new java.util.concurrent.RejectedExecutionException();
+            delivery.run();
+        })) {
+            File refused = new File(someDirectory2, "refused", Type.TXT);
+            assertEquals(1, subscription.getNbOverflows());
+            assertTrue(events.isEmpty());
+            refuse[0] = false;
+            refused.enlarge(1);
+            assertEquals(java.util.List.of(ChangeEvent.Kind.OVERFLOWED),
+                    events.stream().map(ChangeEvent::getKind).collect(java.util.stream.Collectors.toList()));
+            refused.enlarge(1);
+            assertEquals(ChangeEvent.Kind.RESIZED, events.get(1).getKind());
+        }
+    }
+
+    @Test
+    public void linkSweeperTest() throws Exception {
+        java.util.List<Link> reported = new java.util.concurrent.CopyOnWriteArrayList<Link>();
+        try (LinkSweeper sweeper = new LinkSweeper(false, reported::add)) {
+            sweeper.start(1, 1);
+            assertThrows(IllegalStateException.class, () -> new LinkSweeper(true, null).start(1, 1));
+            assertEquals(someFile.getAbsolutePath(), someLink.getReferencePath());
+            someFile.terminate();
+            assertNull(someLink.getReferencePath());
+            for(int i = 0; i < 1000 && sweeper.getNbFound() == 0; i++)
+                Thread.sleep(5);
+            assertEquals(java.util.List.of(someLink), reported);
+            assertEquals(java.util.List.of(someLink), sweeper.getDeadLinks());
+            // a link handed over when it died is not handled again by a scan
+            sweeper.scan(someDirectory);
+            while(sweeper.sweep(1_000_000))
+                ;
+            assertEquals(java.util.List.of(someLink), reported);
+            assertEquals(java.util.List.of(someLink), sweeper.getDeadLinks());
+            assertEquals(1, sweeper.getNbFound());
+        }
+        // links that were dead before are found by scanning
+        java.nio.file.Path image = java.nio.file.Files.createTempFile("tree", ".image");
+        try {
+            TreeImage.write(someDirectory, image);
+            Directory read = TreeImage.read(image);
+            LinkSweeper sweeper = new LinkSweeper(true, null);
+            sweeper.scan(read);
+            while(sweeper.sweep(1_000_000))
+                ;
+            assertEquals(1, sweeper.getNbRemoved());
+            assertNull(read.getItem("someLink"));
+            assertNotNull(read.getItem("someLink1"));
+        } finally {
+            java.nio.file.Files.delete(image);
+        }
+        // a wide directory is scanned in chunks, and links terminated later are dropped
+        Directory wide = new Directory("wide");
+        File target = new File(wide, "target", Type.TXT);
+        Link[] links = new Link[600];
+        for(int i = 0; i < links.length; i++)
+            links[i] = new Link(wide, "link" + i, target);
+        target.terminate();
+        LinkSweeper sweeper = new LinkSweeper(false, null);
+        sweeper.scan(wide);
+        while(sweeper.sweep(1_000_000))
+            ;
+        assertEquals(links.length, sweeper.getNbFound());
+        assertEquals(links.length, sweeper.getDeadLinks().size());
+        for(int i = 0; i < 500; i++)
+            links[i].terminate();
+        assertFalse(sweeper.sweep(1_000_000));
+        assertEquals(100, sweeper.getDeadLinks().size());
+    }
+
+    @Test
+    public void subtreeStreamTest() throws Exception {
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        File someFile5 = new File(someDirectory3, "someFile5", Type.PDF);
+        File someFile6 = new File(someDirectory2, "someFile6", Type.PDF);
+        java.util.List<Thing> walked = new java.util.ArrayList<Thing>();
+        walk(someDirectory, walked);
+        java.util.List<Thing> streamed = someDirectory.streamSubtree().collect(java.util.stream.Collectors.toList());
+        assertEquals(walked, streamed);
+        assertEquals(someDirectory.getTotalNbItems(), streamed.size());
+        assertEquals(streamed, someDirectory.streamSubtree().parallel().collect(java.util.stream.Collectors.toList()));
+        // breadth first, everything at one level comes before the level below it
+        java.util.List<Thing> levels = someDirectory.streamSubtree(true).collect(java.util.stream.Collectors.toList());
+        assertEquals(new java.util.HashSet<Thing>(walked), new java.util.HashSet<Thing>(levels));
+        assertTrue(levels.indexOf(someFile6) < levels.indexOf(someFile5));
+        assertTrue(levels.indexOf(someFile) < levels.indexOf(someFile6));
+        assertEquals(walked.size(), someDirectory.streamSubtree(true).parallel().count());
+        assertEquals(0, someDirectory3.streamSubtree().filter(t -> t == someDirectory3).count());
+        // in concurrent mode, a walk reads every item under the lock of its directory
+        Directory.setConcurrent(true);
+        try {
+            Thread writer = new Thread(() -> {
+                for(int i = 0; i < 200; i++)
+                    new File(someDirectory3, "file" + i, Type.TXT).terminate();
+            });
+            writer.start();
+            while(writer.isAlive())
+                assertTrue(someDirectory.streamSubtree().parallel().allMatch(t -> t != null));
+            writer.join();
+        } finally {
+            Directory.setConcurrent(false);
+        }
+        assertEquals(someDirectory.getTotalNbItems(), someDirectory.streamSubtree().count());
+    }
+
+    @Test
+    public void queryTest(){
+        File big = new File(someDirectory2, "big", 500, true, Type.PDF);
+        File small = new File(someDirectory2, "small", 5, true, Type.PDF);
+        File other = new File(someDirectory, "other", 700, true, Type.JAVA);
+        Directory someDirectory3 = new Directory(someDirectory, "someDirectory3");
+        File inside = new File(someDirectory3, "inside", 300, true, Type.PDF);
+        try (FileIndex index = someDirectory.createFileIndex()) {
+            assertThrows(IllegalStateException.class, () -> someDirectory.createFileIndex());
+            assertEquals(someDirectory.streamSubtree().filter(t -> t instanceof File).count(), index.getNbFiles());
+            assertEquals(Query.Plan.SUBTREE_WALK, new Query(someDirectory).plan());
+            assertEquals(Query.Plan.SIZE_INDEX, new Query(someDirectory).largerThan(600).plan());
+            assertEquals(java.util.List.of(big), new Query(someDirectory).ofType(Type.PDF).largerThan(400).find());
+            assertEquals(java.util.List.of(big), new Query(someDirectory2).largerThan(100).find());
+            // the index follows resizes, moves, terminations and batches
+            small.enlarge(200);
+            assertEquals(java.util.Set.of(big, small), new java.util.HashSet<File>(new Query(someDirectory2).largerThan(100).find()));
+            big.move(someDirectory);
+            assertEquals(java.util.List.of(small), new Query(someDirectory2).largerThan(100).find());
+            small.terminate();
+            assertTrue(new Query(someDirectory2).largerThan(100).find().isEmpty());
+            Batch batch = new Batch();
+            File batched = batch.createFile(someDirectory2, "batched", 1000, true, Type.PDF);
+            batch.commit();
+            assertEquals(java.util.List.of(batched), new Query(someDirectory2).largerThan(100).find());
+            try (FileIndex nested = someDirectory2.createFileIndex()) {
+                someDirectory3.move(someDirectory2);
+                assertEquals(2, nested.getNbFiles());
+                assertEquals(java.util.Set.of(batched, inside), new java.util.HashSet<File>(new Query(someDirectory2).ofType(Type.PDF).find()));
+                someDirectory3.makeRoot();
+                assertEquals(1, nested.getNbFiles());
+                assertTrue(new Query(someDirectory).ofType(Type.PDF).find().stream().noneMatch(f -> f == inside));
+            }
+            // the answers are the ones of a walk
+            long now = System.currentTimeMillis();
+            for(Query query : java.util.List.of(new Query(someDirectory).ofType(Type.JAVA),
+                    new Query(someDirectory).sizeBetween(5, 800), new Query(someDirectory).modifiedSince(now - 60_000),
+                    new Query(someDirectory2).modifiedBetween(0, now + 60_000).ofType(Type.PDF)))
+                assertEquals(someDirectory.streamSubtree().filter(t -> t instanceof File && query.matches((File) t)
+                        && query.getDirectory().streamSubtree().anyMatch(u -> u == t)).count(), query.find().size());
+            assertTrue(new Query(someDirectory).find().contains(other));
+        }
+        assertEquals(Query.Plan.SUBTREE_WALK, new Query(someDirectory).largerThan(600).plan());
+        assertEquals(java.util.List.of(other), new Query(someDirectory).ofType(Type.JAVA).largerThan(600).find());
+    }
+
+    private static void walk(Directory dir, java.util.List<Thing> walked){
+        for(Thing item : dir.getContent()){
+            walked.add(item);
+            if(item instanceof Directory)
+                walk((Directory) item, walked);
+        }
+    }
+
+    @Test
+    public void lazyImageTest() throws Exception {
+        Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+        File someFile5 = new File(someDirectory3, "someFile5", 100, true, Type.PDF);
+        new Link(someDirectory2, "someLink2", someFile5);
+        java.nio.file.Path image = java.nio.file.Files.createTempFile("tree", ".image");
+        try {
+            TreeImage.write(someDirectory, image);
+            Directory opened = TreeImage.open(image);
+            assertEquals(someDirectory.getTotalNbItems(), opened.getTotalNbItems());
+            assertEquals(someDirectory.getTotalDiskUsage(), opened.getTotalDiskUsage());
+            assertEquals(someDirectory.getNbItems(), opened.getNbItems());
+            assertNotNull(opened.getUnread());
+            Directory directory2 = (Directory) opened.getItem("someDirectory2");
+            assertNull(opened.getUnread());
+            assertNotNull(directory2.getUnread());
+            assertEquals(2, directory2.getNbItems());
+            assertNotNull(directory2.getUnread());
+            // following the link reads the directories above the file it references
+            Link link = (Link) directory2.getItem("someLink2");
+            assertNull(directory2.getUnread());
+            File file = (File) link.getReference();
+            assertEquals(someFile5.getAbsolutePath(), file.getAbsolutePath());
+            assertSame(file, opened.resolve(someFile5.getAbsolutePath()));
+            file.enlarge(10);
+            assertEquals(someDirectory.getTotalDiskUsage() + 10, opened.getTotalDiskUsage());
+            assertEquals(opened.recountTotalDiskUsage(), opened.getTotalDiskUsage());
+            assertEquals(opened.recountTotalNbItems(), opened.getTotalNbItems());
+            assertSame(opened, ((Link) opened.getItem("someLink1")).getReference());
+        } finally {
+            java.nio.file.Files.delete(image);
+        }
+    }
+
+    @Test
+    public void journalTest() throws Exception {
+        java.nio.file.Path image = java.nio.file.Files.createTempFile("tree", ".image");
+        java.nio.file.Path log = java.nio.file.Files.createTempFile("tree", ".journal");
+        java.nio.file.Files.delete(log);
+        try {
+            TreeImage.write(someDirectory, image);
+            Directory someDirectory3;
+            File someFile5;
+            try (Journal journal = Journal.open(log, someDirectory, Journal.SyncPolicy.EVERY_GROUP, 0)) {
+                assertThrows(IllegalStateException.class,
+                        () -> Journal.open(log, someDirectory, Journal.SyncPolicy.NONE, 0));
+                someDirectory3 = new Directory(someDirectory2, "someDirectory3");
+                someFile5 = new File(someDirectory3, "someFile5", 100, true, Type.PDF);
+                someFile5.enlarge(20);
+                someFile2.changeName("renamed");
+                someFile3.move(someDirectory3);
+                journal.sync();
+                journal.checkpoint(image);
+                new Link(someDirectory3, "someLink2", someFile5);
+                someDirectory3.changeName("someDirectory4");
+                someFile4.terminate();
+                Batch batch = new Batch();
+                batch.createFile(someDirectory2, "batched", 7, true, Type.TXT);
+                batch.move(someFile2, someDirectory2);
+                batch.commit();
+                someFile5.setWritable(false);
+                // changes outside the tree are not recorded
+                new File(new Directory("other"), "outside", Type.TXT);
+            }
+            Directory read = Journal.recover(image, log);
+            assertEquals(someDirectory.getTotalNbItems(), read.getTotalNbItems());
+            assertEquals(someDirectory.getTotalDiskUsage(), read.getTotalDiskUsage());
+            File file = (File) read.resolve(someFile5.getAbsolutePath());
+            assertEquals(120, file.getSize());
+            assertFalse(file.isWritable());
+            assertEquals(someFile5.getCreationMillis(), file.getCreationMillis());
+            assertEquals(file, ((Link) read.resolve("someDirectory2/someDirectory4/someLink2")).getReference());
+            assertNotNull(read.resolve(someFile3.getAbsolutePath()));
+            assertNotNull(read.resolve(someFile2.getAbsolutePath()));
+            File batched = (File) read.resolve("someDirectory2/batched.txt");
+            assertNotNull(batched);
+            assertEquals(((File) someDirectory.resolve("someDirectory2/batched.txt")).getCreationMillis(),
+                    batched.getCreationMillis());
+            assertNull(read.resolve("c.java"));
+            // a record that was not written completely ends the journal
+            long written = java.nio.file.Files.size(log);
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(log,
+                    java.nio.file.StandardOpenOption.APPEND)) {
+                channel.write(java.nio.ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2}));
+            }
+            assertEquals(read.getTotalNbItems(), Journal.recover(image, log).getTotalNbItems());
+            // so does a length larger than what is left of the journal
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(log,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                channel.truncate(written);
+                channel.position(written);
+                channel.write(java.nio.ByteBuffer.wrap(new byte[]{0x7f, -1, -1, -1, 0, 0, 0, 0, 1, 2}));
+            }
+            assertEquals(read.getTotalNbItems(), Journal.recover(image, log).getTotalNbItems());
+            // a change racing a close is recorded or not, but is always made
+            Journal racing = Journal.open(log, someDirectory, Journal.SyncPolicy.NONE, 0);
+            RuntimeException[] thrown = new RuntimeException[1];
+            Thread resizer = new Thread(() -> {
+                try {
+                    for(int i = 0; i < 20_000; i++)
+                        someFile.enlarge(1);
+                } catch (RuntimeException e) {
+                    thrown[0] = e;
+                }
+            });
+            resizer.start();
+            racing.close();
+            resizer.join();
+            assertNull(thrown[0]);
+            assertEquals(20_000, someFile.getSize());
+        } finally {
+            java.nio.file.Files.deleteIfExists(image);
+            java.nio.file.Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void concurrentTest() throws Exception {
+        Directory.setConcurrent(true);
+        try {
+            int diskUsage = someDirectory.getTotalDiskUsage();
+            Directory shared = new Directory(someDirectory, "shared");
+            Thread[] threads = new Thread[4];
+            Throwable[] failures = new Throwable[threads.length];
+            for(int t = 0; t < threads.length; t++){
+                Directory own = new Directory(someDirectory, "thread" + t);
+                String prefix = "t" + t + "_";
+                threads[t] = new Thread(() -> {
+                    for(int i = 0; i < 200; i++){
+                        File file = new File(own, prefix + "file" + i, 10, true, Type.TXT);
+                        file.enlarge(5);
+                        file.changeName(prefix + "renamed" + i);
+                        if(i % 10 == 0)
+                            file.move(shared);
+                        if(i % 50 == 0)
+                            own.changeName(own.getName() + "x");
+                    }
+                });
+                int index = t;
+                threads[t].setUncaughtExceptionHandler((thread, e) -> failures[index] = e);
+            }
+            for(Thread thread : threads)
+                thread.start();
+            for(Thread thread : threads)
+                thread.join();
+            for(Throwable failure : failures)
+                assertNull(failure);
+            assertEquals(4 * 20, shared.getNbItems());
+            assertEquals(someDirectory.recountTotalNbItems(), someDirectory.getTotalNbItems());
+            assertEquals(someDirectory.recountTotalDiskUsage(), someDirectory.getTotalDiskUsage());
+            assertEquals(diskUsage + 4 * 200 * 15, someDirectory.getTotalDiskUsage());
+        } finally {
+            Directory.setConcurrent(false);
+        }
+    }
+
+    @Test
+    public void concurrentPathTest() throws Exception {
+        Directory.setConcurrent(true);
+        try {
+            Directory renamed = new Directory(someDirectory, "renamed");
+            File file = new File(renamed, "file", Type.TXT);
+            java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+            Thread[] readers = new Thread[3];
+            for(int t = 0; t < readers.length; t++){
+                readers[t] = new Thread(() -> {
+                    while(!done.get()){
+                        file.getAbsolutePath();
+                        renamed.getAbsolutePath();
+                    }
+                });
+                readers[t].start();
+            }
+            // no reader may leave a path of an old name behind
+            try {
+                long end = System.nanoTime() + 500_000_000L;
+                String dirName = renamed.getName();
+                for(int i = 0; System.nanoTime() < end; i++){
+                    // a stale path is kept the longest when the directory above does not change
+                    if(i % 64 == 0){
+                        dirName = "renamed" + i;
+                        renamed.changeName(dirName);
+                    }
+                    file.changeName("file" + i);
+                    Thread.yield();
+                    assertEquals("/new_file/" + dirName + "/file" + i + ".txt", file.getAbsolutePath());
+                }
+            } finally {
+                done.set(true);
+                for(Thread reader : readers)
+                    reader.join();
+            }
+        } finally {
+            Directory.setConcurrent(false);
+        }
+    }
+
     @Test
     public void getAbsolutePathTest(){
         Directory someDirectory3 = new Directory(someDirectory2, "someDirectory3");
         someFile.move(someDirectory3);
         assertEquals(someFile.getAbsolutePath(), "/new_file/someDirectory2/someDirectory3/someFile.java");
+        // the path follows renames and moves of the directories above
+        someDirectory2.changeName("renamed");
+        assertEquals("/new_file/renamed/someDirectory3/someFile.java", someFile.getAbsolutePath());
+        someDirectory3.move(someDirectory1);
+        assertEquals("/new_file/someDirectory1/someDirectory3/someFile.java", someFile.getAbsolutePath());
+        someFile.changeName("other");
+        assertEquals("/new_file/someDirectory1/someDirectory3/other.java", someFile.getAbsolutePath());
+        someDirectory3.makeRoot();
+        assertEquals("/someDirectory3/other.java", someFile.getAbsolutePath());
     }
 
 
@@ -0,0 +1,746 @@
+package filesystem;
+
+import be.kuleuven.cs.som.annotate.Model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A helper class storing a directory with everything in it in a binary file, and reading it back.
+ *
+ * The things are numbered breadth first, starting with 0 for the directory itself, so the items
+ * of every directory have consecutive numbers in the order of its content. The file holds:
+ * <ul>
+ *   <li>a header of 32 bytes: the magic number, the version of the format, the number of things,
+ *       the number of bytes of the names and the sequence number of the last change of the journal
+ *       that the image holds;</li>
+ *   <li>one record of 32 bytes per thing, in the order of their numbers: the kind of thing and
+ *       the type of a file, flags for the writability of files and directories and the state of
+ *       links, the length and offset of its name, the size of a file, the first item and number of
+ *       items of a directory or the number of the thing a link references, and the creation and
+ *       modification time;</li>
+ *   <li>since version 2, 12 bytes per thing, in the same order: the number of its directory and
+ *       its total disk usage and number of items below it;</li>
+ *   <li>the names of all things, one byte per character.</li>
+ * </ul>
+ * All numbers are big-endian. Because every record has the same size, the file is read by
+ * mapping it in memory and building the things of different ranges of records in parallel.
+ *
+ * An image can also be opened without reading it: only the directory itself is made, and the
+ * items of every directory are made from the mapped image the first time they are needed. The
+ * totals of the directories come from the image, so the parts of the tree that are never
+ * visited take no memory at all.
+ *
+ * @note  Links must reference things in the stored directory. Links to terminated things are
+ *        read back referencing one terminated placeholder directory.
+ * @note  The records, the totals and the names are each mapped in one buffer, so each of them
+ *        can be at most 2 GB large.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+public final class TreeImage {
+
+    /**
+     * The number every image starts with: "FSIM".
+     */
+    static final int MAGIC = 0x4653494D;
+
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * The sizes of the header and of a record, in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+    static final int TOTALS_SIZE = 12;
+
+    /**
+     * The kinds of things, stored in the lowest two bits of the first byte of a record.
+     */
+    static final int DIRECTORY = 0;
+    static final int FILE = 1;
+    static final int LINK = 2;
+
+    /**
+     * The flags of a record.
+     */
+    static final int WRITABLE = 1;
+    static final int ALIVE = 2;
+
+    /**
+     * The number of records below which a range of records is not split over several workers.
+     */
+    private static final int SPLIT_THRESHOLD = 8192;
+
+    /**
+     * The size of the buffers of the writer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * This class only has static methods.
+     */
+    private TreeImage(){
+    }
+
+    /**********************************************************
+     * writing
+     **********************************************************/
+
+    /**
+     * Writes the given directory and everything in it to the given file, replacing it.
+     * @param dir
+     *        the directory to write.
+     * @param file
+     *        the file to write to.
+     * @throws IllegalArgumentException
+     *         if the directory or file is not effective, or a link in the directory references
+     *         an effective thing outside of it.
+     * @throws UncheckedIOException
+     *         if the file can not be written.
+     */
+    public static void write(Directory dir, Path file) throws IllegalArgumentException, UncheckedIOException {
+        write(dir, file, 0);
+    }
+
+    /**
+     * Writes the given directory to the given file, recording that it holds all the changes of
+     * the journal up to the given sequence number.
+     * @see write(Directory, Path)
+     */
+    static void write(Directory dir, Path file, long sequence) throws IllegalArgumentException, UncheckedIOException {
+        if(dir == null || file == null)
+            throw new IllegalArgumentException();
+        Locking.lockStructure();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            new Writer(dir, channel, sequence).write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            Locking.unlockStructure();
+        }
+    }
+
+    /**
+     * A class of writers of one directory to one channel.
+     */
+    private static final class Writer {
+
+        private final Directory root;
+        private final FileChannel channel;
+        private final long sequence;
+
+        /**
+         * The directories in the order of their numbers, their numbers and the number of the first item of each.
+         */
+        private final List<Directory> directories = new ArrayList<Directory>();
+        private final List<Integer> directoryNumbers = new ArrayList<Integer>();
+        private final Map<Directory, Integer> firstItems = new IdentityHashMap<Directory, Integer>();
+
+        /**
+         * The buffers of the records, the totals and the names, and the place in the file where they go next.
+         */
+        private final ByteBuffer records = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer totals = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer names = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long recordsPosition = HEADER_SIZE;
+        private long totalsPosition;
+        private long namesPosition;
+        private int namesLength = 0;
+
+        Writer(Directory root, FileChannel channel, long sequence){
+            this.root = root;
+            this.channel = channel;
+            this.sequence = sequence;
+        }
+
+        void write() throws IOException{
+            int nbThings = numberDirectories();
+            totalsPosition = HEADER_SIZE + (long) RECORD_SIZE * nbThings;
+            namesPosition = totalsPosition + (long) TOTALS_SIZE * nbThings;
+            writeRecord(root, 1, -1);
+            for(int i = 0; i < directories.size(); i++)
+                for(Thing item : directories.get(i).getContent())
+                    writeRecord(item, (item instanceof Directory) ? firstItems.get(item) : 0, directoryNumbers.get(i));
+            flush(records, recordsPosition);
+            flush(totals, totalsPosition);
+            flush(names, namesPosition);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(nbThings).putInt(namesLength).putLong(sequence);
+            header.clear();
+            channel.write(header, 0);
+            // A checkpoint replaces the old image by this one, so it has to be on the disk first.
+            channel.force(true);
+        }
+
+        /**
+         * Numbers the directories breadth first.
+         * @return the number of things.
+         */
+        private int numberDirectories(){
+            int next = 1;
+            directories.add(root);
+            directoryNumbers.add(0);
+            for(int i = 0; i < directories.size(); i++){
+                Directory dir = directories.get(i);
+                firstItems.put(dir, next);
+                for(Thing item : dir.getContent()){
+                    if(item instanceof Directory){
+                        directories.add((Directory) item);
+                        directoryNumbers.add(next);
+                    }
+                    next++;
+                }
+            }
+            return next;
+        }
+
+        /**
+         * @return the number of the given thing, which has to be in the written directory.
+         */
+        private int numberOf(Thing thing) throws IllegalArgumentException{
+            if(thing == root)
+                return 0;
+            Integer first = firstItems.get(thing.getDirectory());
+            if(first == null)
+                throw new IllegalArgumentException("A link references " + thing.getName() + " outside the directory");
+            return first + thing.getDirectory().getIndexOf(thing) - 1;
+        }
+
+        private void writeRecord(Thing thing, int firstItem, int parent) throws IOException{
+            int kind;
+            int flags = 0;
+            int value = 0;
+            int count = 0;
+            if(thing instanceof Directory){
+                Directory dir = (Directory) thing;
+                kind = DIRECTORY;
+                if(dir.isWritable())
+                    flags |= WRITABLE;
+                value = firstItem;
+                count = dir.getContent().size();
+            } else if(thing instanceof File){
+                File file = (File) thing;
+                kind = FILE | (file.getFileType().ordinal() << 2);
+                if(file.isWritable())
+                    flags |= WRITABLE;
+                value = file.getSize();
+            } else {
+                Link link = (Link) thing;
+                kind = LINK;
+                if(link.getReference().isTerminated){
+                    value = -1;
+                } else {
+                    flags |= ALIVE;
+                    value = numberOf(link.getReference());
+                }
+            }
+            String name = thing.getName();
+            if(name.length() > 0xFFFF)
+                throw new IllegalArgumentException("The name of " + thing.getAbsolutePath() + " is too long");
+            if(records.remaining() < RECORD_SIZE)
+                recordsPosition = flush(records, recordsPosition);
+            records.put((byte) kind).put((byte) flags).putShort((short) name.length()).putInt(namesLength)
+                    .putInt(value).putInt(count).putLong(thing.getCreationMillis()).putLong(thing.getModificationMillis());
+            if(totals.remaining() < TOTALS_SIZE)
+                totalsPosition = flush(totals, totalsPosition);
+            totals.putInt(parent).putInt(thing.getDiskUsage()).putInt(thing.getItemCount() - 1);
+            byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+            for(int i = 0; i < bytes.length; ){
+                if(!names.hasRemaining())
+                    namesPosition = flush(names, namesPosition);
+                int length = Math.min(names.remaining(), bytes.length - i);
+                names.put(bytes, i, length);
+                i += length;
+            }
+            namesLength += bytes.length;
+        }
+
+        /**
+         * Writes the given buffer at the given place in the file and empties it.
+         * @return the place in the file after the written bytes.
+         */
+        private long flush(ByteBuffer buffer, long position) throws IOException{
+            buffer.flip();
+            while(buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+            return position;
+        }
+    }
+
+    /**********************************************************
+     * reading
+     **********************************************************/
+
+    /**
+     * Reads a directory written by write from the given file on the common fork-join pool.
+     * @effect | read(file, ForkJoinPool.commonPool())
+     */
+    public static Directory read(Path file) throws IllegalArgumentException, UncheckedIOException {
+        return read(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reads a directory written by write from the given file, building the things on the given pool.
+     * @param file
+     *        the file to read.
+     * @param pool
+     *        the pool whose workers build the things.
+     * @return a new root directory with everything that was written in it.
+     * @throws IllegalArgumentException
+     *         if the file or pool is not effective.
+     * @throws UncheckedIOException
+     *         if the file can not be read or is not a valid image.
+     */
+    public static Directory read(Path file, ForkJoinPool pool) throws IllegalArgumentException, UncheckedIOException {
+        if(file == null || pool == null)
+            throw new IllegalArgumentException();
+        try {
+            return new Reader(Image.map(file)).read(pool);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | ClassCastException e) {
+            throw new UncheckedIOException(new IOException("The image is not valid", e));
+        }
+    }
+
+    /**
+     * Opens a directory written by write from the given file without reading what is in it. The
+     * items of every directory are read from the mapped file the first time they are needed.
+     * @param file
+     *        the file to open.
+     * @return a new root directory standing for everything that was written in it.
+     *         | result.getTotalNbItems() == read(file).getTotalNbItems()
+     * @throws IllegalArgumentException
+     *         if the file is not effective.
+     * @throws UncheckedIOException
+     *         if the file can not be read or is not a valid image of version 2 or higher. An
+     *         error in the part of the image that is read later is thrown when it is read.
+     */
+    public static Directory open(Path file) throws IllegalArgumentException, UncheckedIOException {
+        if(file == null)
+            throw new IllegalArgumentException();
+        Image image = Image.map(file);
+        if(!image.hasTotals())
+            throw new UncheckedIOException(new IOException("The image has no totals and can only be read"));
+        try {
+            return new LazyReader(image).getRoot();
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | ClassCastException e) {
+            throw new UncheckedIOException(new IOException("The image is not valid", e));
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last change of the journal held by the image in the given file.
+     * @throws UncheckedIOException
+     *         if the file can not be read or is not an image.
+     */
+    static long readSequence(Path file) throws UncheckedIOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel).getLong(16);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the header of the image in the given channel.
+     * @throws IOException
+     *         if the channel can not be read or holds no image.
+     */
+    @Model
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header, header.position()) >= 0)
+            ;
+        if(header.hasRemaining() || header.getInt(0) != MAGIC)
+            throw new IOException("Not an image of a directory");
+        return header;
+    }
+
+    /**
+     * A class of mapped images, whose records, totals and names are each mapped in a buffer of their own.
+     */
+    private static final class Image {
+
+        private final int nbThings;
+        private final ByteBuffer records;
+        private final ByteBuffer totals;
+        private final ByteBuffer names;
+
+        private Image(int nbThings, ByteBuffer records, ByteBuffer totals, ByteBuffer names){
+            this.nbThings = nbThings;
+            this.records = records;
+            this.totals = totals;
+            this.names = names;
+        }
+
+        /**
+         * Maps the image in the given file.
+         * @throws UncheckedIOException
+         *         if the file can not be read or is not an image.
+         */
+        static Image map(Path file) throws UncheckedIOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = readHeader(channel);
+                int version = header.getInt(4);
+                if(version < 1 || version > VERSION)
+                    throw new IOException("Unknown version " + version);
+                int nbThings = header.getInt(8);
+                long namesLength = header.getInt(12) & 0xFFFFFFFFL;
+                long totalsStart = HEADER_SIZE + (long) RECORD_SIZE * nbThings;
+                long totalsLength = (version >= 2) ? (long) TOTALS_SIZE * nbThings : 0;
+                long namesStart = totalsStart + totalsLength;
+                if(nbThings < 1 || namesStart + namesLength > channel.size())
+                    throw new IOException("The image is truncated");
+                return new Image(nbThings, map(channel, HEADER_SIZE, totalsStart - HEADER_SIZE),
+                        (version >= 2) ? map(channel, totalsStart, totalsLength) : null,
+                        map(channel, namesStart, namesLength));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("A part of the image is larger than 2 GB");
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * @return whether the image holds the totals of the things.
+         */
+        boolean hasTotals(){
+            return totals != null;
+        }
+
+        /**
+         * @return the position of the record of the given thing.
+         */
+        @Model
+        private static int record(int number){
+            return RECORD_SIZE * number;
+        }
+
+        /**
+         * Makes the thing with the given number, without a directory or items.
+         */
+        Thing create(int number, byte[] scratch){
+            int at = record(number);
+            int kind = records.get(at);
+            int flags = records.get(at + 1);
+            int nameLength = records.getShort(at + 2) & 0xFFFF;
+            int nameOffset = records.getInt(at + 4);
+            if(scratch.length < nameLength)
+                scratch = new byte[nameLength];
+            names.get(nameOffset, scratch, 0, nameLength);
+            String name = new String(scratch, 0, nameLength, StandardCharsets.ISO_8859_1);
+            long creation = records.getLong(at + 16);
+            long modification = records.getLong(at + 24);
+            Thing thing;
+            switch(kind & 3){
+                case DIRECTORY:
+                    Directory dir = new Directory(name, creation);
+                    dir.setWritable((flags & WRITABLE) != 0);
+                    thing = dir;
+                    break;
+                case FILE:
+                    File file = new File(name, records.getInt(at + 8), Type.values()[kind >>> 2], creation);
+                    file.setWritable((flags & WRITABLE) != 0);
+                    thing = file;
+                    break;
+                case LINK:
+                    thing = new Link(name, creation);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown kind of thing " + kind);
+            }
+            thing.setModificationMillis(modification);
+            return thing;
+        }
+
+        /**
+         * @return the number of the first item of the given directory.
+         * @throws IllegalArgumentException
+         *         if its items are not all after it in the image.
+         */
+        int getFirstItem(int number) throws IllegalArgumentException {
+            int first = records.getInt(record(number) + 8);
+            int count = getNbItems(number);
+            if(count < 0 || first <= number || first + count > nbThings)
+                throw new IllegalArgumentException("Wrong items of thing " + number);
+            return first;
+        }
+
+        /**
+         * @return the number of items of the given directory.
+         */
+        int getNbItems(int number){
+            return records.getInt(record(number) + 12);
+        }
+
+        /**
+         * @return whether the given link references a thing that was not terminated.
+         */
+        boolean isAlive(int number){
+            return (records.get(record(number) + 1) & ALIVE) != 0;
+        }
+
+        /**
+         * @return the number of the thing the given link references.
+         */
+        int getReference(int number) throws IllegalArgumentException {
+            int reference = records.getInt(record(number) + 8);
+            if(reference < 0 || reference >= nbThings)
+                throw new IllegalArgumentException("Link " + number + " references nothing");
+            return reference;
+        }
+
+        /**
+         * @return the number of the directory of the given thing.
+         * @pre    | hasTotals()
+         * @throws IllegalArgumentException
+         *         if that directory does not come before the thing.
+         */
+        int getDirectory(int number) throws IllegalArgumentException {
+            int parent = totals.getInt(TOTALS_SIZE * number);
+            if(parent < 0 || parent >= number)
+                throw new IllegalArgumentException("Wrong directory of thing " + number);
+            return parent;
+        }
+
+        /**
+         * @return the total disk usage of the given directory.
+         * @pre    | hasTotals()
+         */
+        int getTotalDiskUsage(int number){
+            return totals.getInt(TOTALS_SIZE * number + 4);
+        }
+
+        /**
+         * @return the total number of items below the given directory.
+         * @pre    | hasTotals()
+         */
+        int getTotalNbItems(int number){
+            return totals.getInt(TOTALS_SIZE * number + 8);
+        }
+    }
+
+    /**
+     * @return a new terminated directory, referenced by links whose reference was terminated.
+     */
+    @Model
+    private static Directory deletedPlaceholder(){
+        Directory deleted = new Directory("deleted");
+        deleted.isTerminated = true;
+        return deleted;
+    }
+
+    /**
+     * A class of readers of a whole image at once.
+     */
+    private static final class Reader {
+
+        private final Image image;
+        private final Thing[] things;
+        private final Directory deleted = deletedPlaceholder();
+
+        Reader(Image image){
+            this.image = image;
+            things = new Thing[image.nbThings];
+        }
+
+        Directory read(ForkJoinPool pool){
+            pool.invoke(new RangeTask(0, image.nbThings, false));
+            pool.invoke(new RangeTask(0, image.nbThings, true));
+            // Items have higher numbers than their directory, so going backwards every directory
+            // comes after its items.
+            for(int i = image.nbThings - 1; i >= 0; i--)
+                if(things[i] instanceof Directory)
+                    ((Directory) things[i]).restoreTotals();
+            return (Directory) things[0];
+        }
+
+        /**
+         * Gives the thing with the given number its items or reference.
+         */
+        private void connect(int number){
+            Thing thing = things[number];
+            if(thing instanceof Directory){
+                int count = image.getNbItems(number);
+                ((Directory) thing).adoptItems(things, image.getFirstItem(number), count);
+            } else if(thing instanceof Link){
+                boolean alive = image.isAlive(number);
+                Thing reference = alive ? things[image.getReference(number)] : deleted;
+                if(reference instanceof Link)
+                    throw new IllegalArgumentException("Link " + number + " references a link");
+                ((Link) thing).restoreReference(reference, alive);
+            }
+        }
+
+        /**
+         * A class of tasks making or connecting the things of a range of numbers.
+         */
+        private final class RangeTask extends RecursiveAction {
+
+            private final int from;
+            private final int to;
+            private final boolean connecting;
+
+            RangeTask(int from, int to, boolean connecting){
+                this.from = from;
+                this.to = to;
+                this.connecting = connecting;
+            }
+
+            @Override
+            protected void compute(){
+                if(to - from > SPLIT_THRESHOLD){
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new RangeTask(from, middle, connecting), new RangeTask(middle, to, connecting));
+                    return;
+                }
+                if(connecting){
+                    for(int i = from; i < to; i++)
+                        connect(i);
+                } else {
+                    byte[] scratch = new byte[256];
+                    for(int i = from; i < to; i++)
+                        things[i] = image.create(i, scratch);
+                }
+            }
+        }
+    }
+
+    /**
+     * A class of readers of an image one directory at a time. Every thing that was made is
+     * remembered at its number in an array, so links can find the things they reference; a thing
+     * that was not made yet is made by reading the items of the directories above it.
+     */
+    private static final class LazyReader {
+
+        private final Image image;
+        private final Thing[] things;
+        private final Directory deleted = deletedPlaceholder();
+        private final byte[] scratch = new byte[256];
+
+        LazyReader(Image image){
+            this.image = image;
+            this.things = new Thing[image.nbThings];
+        }
+
+        synchronized Directory getRoot(){
+            Thing root = make(0);
+            if(!(root instanceof Directory))
+                throw new IllegalArgumentException("The image holds no directory");
+            return (Directory) root;
+        }
+
+        /**
+         * Makes the thing with the given number, without a directory. A directory gets its
+         * totals, and the items it still has to read.
+         */
+        @Model
+        private Thing make(int number){
+            Thing thing = image.create(number, scratch);
+            if(thing instanceof Directory){
+                Directory dir = (Directory) thing;
+                dir.restoreTotals(image.getTotalDiskUsage(number), image.getTotalNbItems(number));
+                if(image.getNbItems(number) > 0)
+                    dir.setUnread(new Unread(this, number));
+            }
+            things[number] = thing;
+            return thing;
+        }
+
+        /**
+         * Reads the items of the given directory, unless another thread did so first.
+         */
+        synchronized void read(Directory dir, Unread unread){
+            if(dir.getUnread() != unread)
+                return;
+            int first = image.getFirstItem(unread.number);
+            int count = image.getNbItems(unread.number);
+            Thing[] items = new Thing[count];
+            for(int i = 0; i < count; i++)
+                items[i] = make(first + i);
+            dir.adoptItems(items, 0, count);
+            dir.setUnread(null);
+            // References are only followed now, so a link into this directory finds its items.
+            for(int i = 0; i < count; i++){
+                if(items[i] instanceof Link){
+                    boolean alive = image.isAlive(first + i);
+                    Thing reference = alive ? thingAt(image.getReference(first + i)) : deleted;
+                    if(reference instanceof Link)
+                        throw new IllegalArgumentException("Link " + (first + i) + " references a link");
+                    ((Link) items[i]).restoreReference(reference, alive);
+                }
+            }
+        }
+
+        /**
+         * @return the thing with the given number, reading the directories above it if needed.
+         */
+        @Model
+        private Thing thingAt(int number){
+            Thing thing = things[number];
+            if(thing == null){
+                Thing dir = thingAt(image.getDirectory(number));
+                ((Directory) dir).readItems();
+                thing = things[number];
+                if(thing == null)
+                    throw new IllegalArgumentException("Thing " + number + " is not an item of its directory");
+            }
+            return thing;
+        }
+    }
+
+    /**
+     * A class of places in an opened image where the items of a directory are still to be read.
+     */
+    static final class Unread {
+
+        private final LazyReader reader;
+        private final int number;
+
+        private Unread(LazyReader reader, int number){
+            this.reader = reader;
+            this.number = number;
+        }
+
+        /**
+         * @return the number of items the directory has in the image.
+         */
+        int getNbItems(){
+            return reader.image.getNbItems(number);
+        }
+
+        /**
+         * Reads the items of the given directory from the image.
+         * @throws UncheckedIOException
+         *         if that part of the image is not valid.
+         */
+        void read(Directory dir) throws UncheckedIOException {
+            try {
+                reader.read(dir, this);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException | ClassCastException e) {
+                throw new UncheckedIOException(new IOException("The image is not valid", e));
+            }
+        }
+    }
+}
@@ -31,4 +31,18 @@ public enum Type {
     public String getExtension(){
         return this.extension;
     }
+
+    /**
+     * Returns the type with the given extension, ignoring capital letters.
+     * @param extension
+     *        the extension, starting with a dot.
+     * @return the type whose extension equals the given one, or null if there is none.
+     *         | result.getExtension().equalsIgnoreCase(extension)
+     */
+    public static Type ofExtension(String extension){
+        for(Type type : values())
+            if(type.extension.equalsIgnoreCase(extension))
+                return type;
+        return null;
+    }
 }
@@ -0,0 +1,80 @@
+package filesystem.benchmark;
+
+import filesystem.Directory;
+import filesystem.File;
+import filesystem.Type;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A benchmark for making many files in one directory, which is dominated by checking
+ * and setting the names of the new files.
+ *
+ * @note  Run with gradle jmh --args='BulkCreationBenchmark'; add -p nbFiles=... for another number of files.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class BulkCreationBenchmark {
+
+    @Param("1000000")
+    public int nbFiles;
+
+    private String[] names;
+    private Directory validator;
+    private Directory dir;
+
+    @Setup(Level.Trial)
+    public void makeNames() {
+        names = FilesystemBenchmarks.names("file", nbFiles);
+        validator = new Directory("validator");
+    }
+
+    @Setup(Level.Iteration)
+    public void makeDirectory() {
+        dir = new Directory("bulk");
+    }
+
+    @Benchmark
+    public int validateNamesRegex() {
+        int valid = 0;
+        for (String name : names)
+            if (name.matches("[a-zA-Z_0-9-]+"))
+                valid++;
+        return valid;
+    }
+
+    @Benchmark
+    public int validateNames() {
+        int valid = 0;
+        for (String name : names)
+            if (validator.isValidName(name))
+                valid++;
+        return valid;
+    }
+
+    @Benchmark
+    public int createFiles() {
+        for (String name : names)
+            new File(dir, name, 1, true, Type.TXT);
+        return dir.getNbItems();
+    }
+}
@@ -0,0 +1,558 @@
+package filesystem.benchmark;
+
+import filesystem.Batch;
+import filesystem.Directory;
+import filesystem.File;
+import filesystem.FileIndex;
+import filesystem.Journal;
+import filesystem.Query;
+import filesystem.Thing;
+import filesystem.TreeImage;
+import filesystem.Type;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JMH benchmarks of the hot operations of the filesystem model. Every change that is meant
+ * to make the model faster is held against the numbers of these benchmarks.
+ *
+ * Usage: gradle jmh, or gradle jmh --args='FilesystemBenchmarks.query' to only run the benchmarks
+ * matching a pattern. The benchmarks that build up their state, such as making many files, time a
+ * single round on a fresh state and are reported in milliseconds; the others keep their state and
+ * are reported in nanoseconds per operation.
+ *
+ * @author Bram Oreel & Wout Thiers
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class FilesystemBenchmarks {
+
+    /**
+     * The number of items in a wide directory.
+     */
+    static final int WIDTH = 100_000;
+
+    /**
+     * The number of directories in a deep chain of directories.
+     */
+    static final int DEPTH = 1_000;
+
+    /**********************************************************
+     * states
+     **********************************************************/
+
+    /**
+     * The names of the files in a wide directory.
+     */
+    @State(Scope.Benchmark)
+    public static class Names {
+
+        final String[] names = names("file", WIDTH);
+
+        /**
+         * Reversed names put every new file in front of the others.
+         */
+        final String[] reversed = new String[WIDTH];
+
+        public Names() {
+            for (int i = 0; i < WIDTH; i++)
+                reversed[i] = names[WIDTH - 1 - i];
+        }
+    }
+
+    /**
+     * A new empty directory for every round.
+     */
+    @State(Scope.Thread)
+    public static class Empty {
+
+        Directory dir;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            dir = new Directory("bulk");
+        }
+    }
+
+    /**
+     * A wide directory, and its names in upper case in a scattered order.
+     */
+    @State(Scope.Thread)
+    public static class Wide {
+
+        Directory dir;
+        String[] upperNames;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            String[] names = names("file", WIDTH);
+            dir = wideDirectory(names);
+            upperNames = new String[WIDTH];
+            for (int i = 0; i < WIDTH; i++)
+                upperNames[i] = names[(i * 7919) % WIDTH].toUpperCase();
+        }
+
+        String nextName() {
+            String name = upperNames[next];
+            next = (next + 1) % upperNames.length;
+            return name;
+        }
+    }
+
+    /**
+     * Two deep chains of directories, with a file at the bottom of the left one.
+     */
+    @State(Scope.Thread)
+    public static class Chains {
+
+        Directory left;
+        Directory right;
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Directory root = new Directory("root");
+            left = deepChain(root, "left", DEPTH);
+            right = deepChain(root, "right", DEPTH);
+            file = new File(left, "moving", 10, true, Type.TXT);
+        }
+    }
+
+    /**
+     * A deep chain of directories with a file in each of them, and a file at the bottom.
+     */
+    @State(Scope.Benchmark)
+    public static class Deep {
+
+        Directory root;
+        File leaf;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            root = new Directory("root");
+            Directory bottom = deepChain(root, "deep", DEPTH);
+            for (Directory dir = bottom; dir != null; dir = dir.getDirectory())
+                new File(dir, "data", 10, true, Type.TXT);
+            leaf = new File(bottom, "leaf", Type.TXT);
+        }
+    }
+
+    /**
+     * A new directory of files to be renamed for every round.
+     */
+    @State(Scope.Thread)
+    public static class Renames {
+
+        static final int NB_FILES = 20_000;
+
+        final String[] oldNames = names("file", NB_FILES);
+        final String[] newNames = names("renamed", NB_FILES);
+        Directory dir;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            dir = wideDirectory(oldNames);
+        }
+    }
+
+    /**
+     * The paths of the files in a wide directory at the bottom of a chain of directories.
+     */
+    @State(Scope.Thread)
+    public static class Paths {
+
+        Directory root;
+        String[] paths;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            String[] names = names("file", WIDTH);
+            root = new Directory("root");
+            Directory bottom = deepChain(root, "deep", 100);
+            for (String name : names)
+                new File(bottom, name, 1, true, Type.TXT);
+            paths = new String[WIDTH];
+            for (int i = 0; i < WIDTH; i++)
+                paths[i] = bottom.getAbsolutePath() + "/" + names[(i * 7919) % WIDTH] + ".txt";
+        }
+
+        String nextPath() {
+            String path = paths[next];
+            next = (next + 1) % paths.length;
+            return path;
+        }
+    }
+
+    /**
+     * A tree of 1000 directories of 2000 files each, two million things, and an image of it.
+     */
+    @State(Scope.Benchmark)
+    public static class Image {
+
+        Directory root;
+        Path image;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            root = new Directory("root");
+            String[] fileNames = names("file", 2_000);
+            Batch batch = new Batch();
+            for (String dirName : names("dir", 1_000)) {
+                Directory dir = new Directory(root, dirName);
+                for (String name : fileNames)
+                    batch.createFile(dir, name, 1, true, Type.TXT);
+            }
+            batch.commit();
+            image = Files.createTempFile("benchmark", ".image");
+            TreeImage.write(root, image);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(image);
+        }
+    }
+
+    /**
+     * A new file for every round, whose changes are written to a new journal with the given policy.
+     */
+    @State(Scope.Thread)
+    public static class Journaled {
+
+        @Param({"EVERY_GROUP", "INTERVAL", "NONE"})
+        public Journal.SyncPolicy policy;
+
+        File file;
+        Path log;
+        Journal journal;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            file = new File(new Directory("journaled"), "file", Type.TXT);
+            log = Files.createTempFile("benchmark", ".journal");
+            Files.delete(log);
+            journal = Journal.open(log, file.getDirectory(), policy, 10);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            journal.close();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * A tree of 1000 directories of 200 files of size 1 each.
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+
+        Directory root;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            root = new Directory("root");
+            String[] fileNames = names("file", 200);
+            Batch batch = new Batch();
+            for (String dirName : names("dir", 1_000)) {
+                Directory dir = new Directory(root, dirName);
+                for (String name : fileNames)
+                    batch.createFile(dir, name, 1, true, Type.TXT);
+            }
+            batch.commit();
+        }
+    }
+
+    /**
+     * A tree of 1000 directories of 200 files each, of all types and sizes up to 100000, with or
+     * without an index, and a query for the largest PDF files in it.
+     */
+    @State(Scope.Benchmark)
+    public static class Queries {
+
+        @Param({"false", "true"})
+        public boolean indexed;
+
+        Directory root;
+        Query query;
+        File file;
+        FileIndex index;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            root = new Directory("root");
+            String[] fileNames = names("file", 200);
+            Type[] types = Type.values();
+            Batch batch = new Batch();
+            int at = 0;
+            for (String dirName : names("dir", 1_000)) {
+                Directory dir = new Directory(root, dirName);
+                for (String name : fileNames) {
+                    batch.createFile(dir, name, (at * 7919) % 100_000, true, types[at % types.length]);
+                    at++;
+                }
+            }
+            batch.commit();
+            query = new Query(root).ofType(Type.PDF).largerThan(99_000);
+            file = (File) ((Directory) root.getItemAt(1)).getItemAt(1);
+            if (indexed)
+                index = root.createFileIndex();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (index != null)
+                index.close();
+        }
+    }
+
+    /**********************************************************
+     * making files
+     **********************************************************/
+
+    @Benchmark
+    public int create(Names names, Empty empty) {
+        for (String name : names.names)
+            new File(empty.dir, name, 1, true, Type.TXT);
+        return empty.dir.getNbItems();
+    }
+
+    @Benchmark
+    public int createReversed(Names names, Empty empty) {
+        for (String name : names.reversed)
+            new File(empty.dir, name, 1, true, Type.TXT);
+        return empty.dir.getNbItems();
+    }
+
+    @Benchmark
+    public int batchCreateReversed(Names names, Empty empty) {
+        Batch batch = new Batch();
+        for (String name : names.reversed)
+            batch.createFile(empty.dir, name, 1, true, Type.TXT);
+        batch.commit();
+        return empty.dir.getNbItems();
+    }
+
+    /**********************************************************
+     * lookups and moves
+     **********************************************************/
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Thing lookup(Wide wide) {
+        return wide.dir.getItem(wide.nextName());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Directory move(Chains chains) {
+        chains.file.move(chains.file.getDirectory() == chains.left ? chains.right : chains.left);
+        return chains.file.getDirectory();
+    }
+
+    @Benchmark
+    public int rename(Renames renames) {
+        for (int i = 0; i < Renames.NB_FILES; i++)
+            renames.dir.getItem(renames.oldNames[i]).changeName(renames.newNames[i]);
+        return renames.dir.getNbItems();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Thing resolve(Paths paths) {
+        return paths.root.resolve(paths.nextPath());
+    }
+
+    @Benchmark
+    public int resolveAll(Paths paths) {
+        int found = 0;
+        for (Thing thing : paths.root.resolveAll(paths.paths))
+            if (thing != null)
+                found++;
+        return found;
+    }
+
+    /**********************************************************
+     * disk usage and paths
+     **********************************************************/
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int diskUsageWide(Wide wide) {
+        return wide.dir.getTotalDiskUsage();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int recountDiskUsageWide(Wide wide) {
+        return wide.dir.recountTotalDiskUsage();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int diskUsageDeep(Deep deep) {
+        return deep.root.getTotalDiskUsage();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String absolutePath(Deep deep) {
+        return deep.leaf.getAbsolutePath();
+    }
+
+    /**********************************************************
+     * images and journals
+     **********************************************************/
+
+    @Benchmark
+    public long writeImage(Image image) {
+        TreeImage.write(image.root, image.image);
+        return image.image.toFile().length();
+    }
+
+    @Benchmark
+    public int readImage(Image image) {
+        return TreeImage.read(image.image).getTotalNbItems();
+    }
+
+    @Benchmark
+    public int openImage(Image image) {
+        return TreeImage.open(image.image).getContent().size();
+    }
+
+    @Benchmark
+    public int openImageDirectory(Image image) {
+        return ((Directory) TreeImage.open(image.image).getItemAt(500)).getContent().size();
+    }
+
+    @Benchmark
+    public int resizeJournaled(Journaled journaled) {
+        for (int i = 0; i < WIDTH; i++)
+            journaled.file.enlarge(1);
+        journaled.journal.sync();
+        return journaled.file.getSize();
+    }
+
+    /**********************************************************
+     * subtrees and queries
+     **********************************************************/
+
+    @Benchmark
+    public long countFromCopy(Tree tree) {
+        return copySubtree(tree.root, new ArrayList<Thing>()).stream().filter(FilesystemBenchmarks::isSmall).count();
+    }
+
+    @Benchmark
+    public long countFromStream(Tree tree) {
+        return tree.root.streamSubtree().filter(FilesystemBenchmarks::isSmall).count();
+    }
+
+    @Benchmark
+    public long countFromParallelStream(Tree tree) {
+        return tree.root.streamSubtree().parallel().filter(FilesystemBenchmarks::isSmall).count();
+    }
+
+    @Benchmark
+    public long countFromBreadthFirstStream(Tree tree) {
+        return tree.root.streamSubtree(true).filter(FilesystemBenchmarks::isSmall).count();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<File> query(Queries queries) {
+        return queries.query.find();
+    }
+
+    @Benchmark
+    public int resize(Queries queries) {
+        for (int i = 0; i < WIDTH; i++)
+            queries.file.enlarge(1);
+        return queries.file.getSize();
+    }
+
+    /**********************************************************
+     * helpers
+     **********************************************************/
+
+    /**
+     * @return whether the given thing is a file of size 1.
+     */
+    static boolean isSmall(Thing thing) {
+        return thing instanceof File && ((File) thing).getSize() == 1;
+    }
+
+    /**
+     * @return the given list, after adding everything below the given directory to it.
+     */
+    static List<Thing> copySubtree(Directory dir, List<Thing> copy) {
+        for (Thing item : new ArrayList<Thing>(dir.getContent())) {
+            copy.add(item);
+            if (item instanceof Directory)
+                copySubtree((Directory) item, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the given number of names, made of the given prefix and a number of 7 digits.
+     */
+    static String[] names(String prefix, int number) {
+        String[] names = new String[number];
+        for (int i = 0; i < number; i++)
+            names[i] = String.format("%s%07d", prefix, i);
+        return names;
+    }
+
+    /**
+     * @return a new root directory holding a file of size 1 for each of the given names.
+     */
+    static Directory wideDirectory(String[] names) {
+        Directory dir = new Directory("wide");
+        for (String name : names)
+            new File(dir, name, 1, true, Type.TXT);
+        return dir;
+    }
+
+    /**
+     * @return the deepest directory of a new chain of the given number of directories under the given one.
+     */
+    static Directory deepChain(Directory top, String name, int depth) {
+        Directory dir = top;
+        for (int i = 0; i < depth; i++)
+            dir = new Directory(dir, name + i);
+        return dir;
+    }
+}